@@ -0,0 +1,384 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipInputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The class AniDBCacheSeeder - imports anime XML files (as delivered by the HTTP API <i>request=anime</i>) from a directory or a zip/tar(.gz)
+ * archive into the cache, so a new install does not need to fetch every anime again at one request per two seconds.<br>
+ * Every file is validated by its content and stored as the cached file of the anime request of its aid, whatever its name is (e.g. files named
+ * by their aid or the cache files of another install); anime which are already cached are kept. No network access is needed.
+ *
+ * <pre>
+ * java -cp ... org.tinymediamanager.scraper.anidb.AniDBCacheSeeder &lt;directory|archive.zip|archive.tar|archive.tar.gz&gt; [threads]
+ * </pre>
+ *
+ * @author Manuel Laggner
+ */
+public class AniDBCacheSeeder {
+  private static final Logger  LOGGER         = LoggerFactory.getLogger(AniDBCacheSeeder.class);
+  // far more than the largest anime XML; larger files are skipped rather than read into memory
+  private static final long    MAX_ANIME_SIZE = 64 * 1024 * 1024;
+
+  private final AniDBCachedUrl cachedUrl;
+  private final int            threads;
+
+  private final AtomicInteger  imported       = new AtomicInteger();
+  private final AtomicInteger  existing       = new AtomicInteger();
+  private final AtomicInteger  invalid        = new AtomicInteger();
+  private final AtomicInteger  skipped        = new AtomicInteger();
+
+  public AniDBCacheSeeder(AniDBCachedUrl cachedUrl, int threads) {
+    this.cachedUrl = cachedUrl;
+    this.threads = Math.max(threads, 1);
+  }
+
+  public static void main(String[] args) throws Exception {
+    if (args.length < 1) {
+      System.err.println("usage: AniDBCacheSeeder <directory|archive.zip|archive.tar|archive.tar.gz> [threads]");
+      System.exit(1);
+    }
+    int threads = args.length > 1 ? Integer.parseInt(args[1]) : Runtime.getRuntime().availableProcessors();
+    AniDBCacheSeeder seeder = new AniDBCacheSeeder(new AniDBCachedUrl(), threads);
+    seeder.seed(Paths.get(args[0]));
+    System.out.println("imported: " + seeder.getImportedCount() + ", already cached: " + seeder.getExistingCount() + ", invalid: "
+        + seeder.getInvalidCount() + ", skipped: " + seeder.getSkippedCount());
+  }
+
+  /**
+   * import all anime XML files of the given directory or archive. Every file is checked, files without anime XML are counted as invalid
+   *
+   * @param source
+   *          a directory, a zip file or a tar file (optionally gzipped)
+   * @throws IOException
+   * @throws InterruptedException
+   */
+  public void seed(Path source) throws IOException, InterruptedException {
+    // reading the source is sequential, parsing and writing is spread over the workers; the bounded queue keeps only a few files in memory
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(threads * 4),
+        new ThreadPoolExecutor.CallerRunsPolicy());
+    try {
+      String name = source.getFileName().toString().toLowerCase(Locale.ROOT);
+      if (Files.isDirectory(source)) {
+        seedDirectory(source, executor);
+      }
+      else if (name.endsWith(".zip")) {
+        seedZip(source, executor);
+      }
+      else if (name.endsWith(".tar") || name.endsWith(".tar.gz") || name.endsWith(".tgz")) {
+        seedTar(source, executor);
+      }
+      else {
+        throw new IOException("unsupported source: " + source);
+      }
+    }
+    finally {
+      executor.shutdown();
+      executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+    }
+    LOGGER.info("seeded cache from " + source + " - imported: " + imported + ", already cached: " + existing + ", invalid: " + invalid
+        + ", skipped: " + skipped);
+  }
+
+  public int getImportedCount() {
+    return imported.get();
+  }
+
+  public int getExistingCount() {
+    return existing.get();
+  }
+
+  public int getInvalidCount() {
+    return invalid.get();
+  }
+
+  /**
+   * the entries which have not been checked at all: links, special files and files larger than any anime XML
+   */
+  public int getSkippedCount() {
+    return skipped.get();
+  }
+
+  private void seedDirectory(Path directory, final ThreadPoolExecutor executor) throws IOException {
+    Files.walkFileTree(directory, new SimpleFileVisitor<Path>() {
+      @Override
+      public FileVisitResult visitFile(final Path file, BasicFileAttributes attrs) {
+        if (!attrs.isRegularFile() || attrs.size() > MAX_ANIME_SIZE) {
+          skip(file.toString());
+        }
+        else {
+          executor.execute(new Runnable() {
+            @Override
+            public void run() {
+              try {
+                importAnime(file.toString(), Files.readAllBytes(file));
+              }
+              catch (IOException e) {
+                LOGGER.warn("could not read " + file + ": " + e.getMessage());
+                invalid.incrementAndGet();
+              }
+            }
+          });
+        }
+        return FileVisitResult.CONTINUE;
+      }
+    });
+  }
+
+  private void seedZip(Path zip, ThreadPoolExecutor executor) throws IOException {
+    try (ZipInputStream zis = new ZipInputStream(new BufferedInputStream(Files.newInputStream(zip)))) {
+      for (ZipEntry entry = zis.getNextEntry(); entry != null; entry = zis.getNextEntry()) {
+        if (entry.isDirectory()) {
+          continue;
+        }
+        if (entry.getSize() > MAX_ANIME_SIZE) {
+          skip(entry.getName());
+        }
+        else {
+          submit(executor, entry.getName(), readFully(zis, -1));
+        }
+      }
+    }
+  }
+
+  private void seedTar(Path tar, ThreadPoolExecutor executor) throws IOException {
+    InputStream is = new BufferedInputStream(Files.newInputStream(tar));
+    try {
+      String name = tar.getFileName().toString().toLowerCase(Locale.ROOT);
+      if (!name.endsWith(".tar")) {
+        is = new GZIPInputStream(is);
+      }
+
+      byte[] header = new byte[512];
+      String longName = null;
+      while (readBlock(is, header)) {
+        // two empty blocks mark the end of the archive
+        if (header[0] == 0) {
+          break;
+        }
+
+        String entryName = longName != null ? longName : getTarEntryName(header);
+        longName = null;
+        long size = parseOctal(header, 124, 12);
+        byte type = header[156];
+
+        if (type == 'L') {
+          // GNU long name: the content is the name of the next entry
+          longName = StringUtils.substringBefore(new String(readFully(is, size), StandardCharsets.UTF_8), "\0");
+        }
+        else if (type == 'x') {
+          // pax extended header: its path record is the name of the next entry
+          longName = getPaxPath(readFully(is, size));
+        }
+        else if ((type == '0' || type == 0) && size <= MAX_ANIME_SIZE) {
+          submit(executor, entryName, readFully(is, size));
+        }
+        else {
+          // links, special files and huge files are counted; directories and global pax headers (no file names in there) are no files at all
+          if (type != '5' && type != 'g') {
+            skip(entryName);
+          }
+          skipFully(is, size);
+        }
+
+        // the content is padded to full blocks
+        skipFully(is, (512 - size % 512) % 512);
+      }
+    }
+    finally {
+      is.close();
+    }
+  }
+
+  private void submit(ThreadPoolExecutor executor, final String name, final byte[] content) {
+    executor.execute(new Runnable() {
+      @Override
+      public void run() {
+        importAnime(name, content);
+      }
+    });
+  }
+
+  private void skip(String name) {
+    LOGGER.debug("skipping " + name + ": no regular file or too large");
+    skipped.incrementAndGet();
+  }
+
+  /*
+   * validate the anime XML and store it as the cached file of the anime request of its aid
+   */
+  private void importAnime(String name, byte[] content) {
+    try {
+      Document doc = Jsoup.parse(new String(content, StandardCharsets.UTF_8), "", Parser.xmlParser());
+      Element anime = doc.children().isEmpty() ? null : doc.child(0);
+      if (anime == null || !"anime".equalsIgnoreCase(anime.tagName()) || !StringUtils.isNumeric(anime.attr("id"))
+          || anime.getElementsByTag("titles").isEmpty()) {
+        LOGGER.debug("skipping " + name + ": no anime XML");
+        invalid.incrementAndGet();
+        return;
+      }
+
+      if (cachedUrl.store(AniDBMetadataProvider.ANIME_URL + anime.attr("id"), content)) {
+        imported.incrementAndGet();
+      }
+      else {
+        existing.incrementAndGet();
+      }
+    }
+    catch (Exception e) {
+      LOGGER.warn("could not import " + name + ": " + e.getMessage());
+      invalid.incrementAndGet();
+    }
+  }
+
+  private static String getTarEntryName(byte[] header) {
+    String name = readString(header, 0, 100);
+    // ustar: the name may be split into prefix and name
+    if ("ustar".equals(readString(header, 257, 6).trim())) {
+      String prefix = readString(header, 345, 155);
+      if (!prefix.isEmpty()) {
+        name = prefix + "/" + name;
+      }
+    }
+    return name;
+  }
+
+  /*
+   * the value of the path record of a pax extended header ("<length> <key>=<value>\n" records, the length in bytes including itself) or null
+   */
+  private static String getPaxPath(byte[] content) {
+    int position = 0;
+    while (position < content.length) {
+      int space = position;
+      while (space < content.length && content[space] != ' ') {
+        space++;
+      }
+      int length;
+      try {
+        length = Integer.parseInt(new String(content, position, space - position, StandardCharsets.US_ASCII));
+      }
+      catch (NumberFormatException e) {
+        break;
+      }
+      if (space >= content.length || position + length > content.length || position + length <= space + 1) {
+        break;
+      }
+      // without the trailing newline
+      String record = new String(content, space + 1, position + length - space - 2, StandardCharsets.UTF_8);
+      if (record.startsWith("path=")) {
+        return record.substring(5);
+      }
+      position += length;
+    }
+    return null;
+  }
+
+  private static String readString(byte[] buffer, int offset, int length) {
+    int end = offset;
+    while (end < offset + length && buffer[end] != 0) {
+      end++;
+    }
+    return new String(buffer, offset, end - offset, StandardCharsets.UTF_8);
+  }
+
+  private static long parseOctal(byte[] buffer, int offset, int length) {
+    long value = 0;
+    for (int i = offset; i < offset + length; i++) {
+      byte b = buffer[i];
+      if (b >= '0' && b <= '7') {
+        value = (value << 3) + (b - '0');
+      }
+      else if (value > 0 && (b == 0 || b == ' ')) {
+        break;
+      }
+    }
+    return value;
+  }
+
+  private static boolean readBlock(InputStream is, byte[] block) throws IOException {
+    int read = 0;
+    while (read < block.length) {
+      int count = is.read(block, read, block.length - read);
+      if (count < 0) {
+        return false;
+      }
+      read += count;
+    }
+    return true;
+  }
+
+  /*
+   * read size bytes of the stream (or everything until the end of the stream if size is negative)
+   */
+  private static byte[] readFully(InputStream is, long size) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream(size > 0 ? (int) size : 8192);
+    byte[] buffer = new byte[8192];
+    long remaining = size < 0 ? Long.MAX_VALUE : size;
+    while (remaining > 0) {
+      int count = is.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+      if (count < 0) {
+        if (size >= 0) {
+          throw new IOException("unexpected end of archive");
+        }
+        break;
+      }
+      baos.write(buffer, 0, count);
+      remaining -= count;
+    }
+    return baos.toByteArray();
+  }
+
+  private static void skipFully(InputStream is, long size) throws IOException {
+    long remaining = size;
+    while (remaining > 0) {
+      long skipped = is.skip(remaining);
+      if (skipped <= 0) {
+        if (is.read() < 0) {
+          throw new IOException("unexpected end of archive");
+        }
+        skipped = 1;
+      }
+      remaining -= skipped;
+    }
+  }
+}
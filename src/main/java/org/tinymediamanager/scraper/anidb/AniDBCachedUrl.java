@@ -1,15 +1,30 @@
 package org.tinymediamanager.scraper.anidb;
 
+import static java.nio.file.StandardCopyOption.ATOMIC_MOVE;
+import static java.nio.file.StandardCopyOption.REPLACE_EXISTING;
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
+import org.jsoup.parser.Parser;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import org.tinymediamanager.scraper.http.Url;
@@ -19,17 +34,54 @@ import org.tinymediamanager.scraper.http.Url;
  *
  *      <quote> All users of this API should employ heavy local caching. Requesting the same dataset multiple times on a single day can get you
  *      banned. The same goes for request flooding. You should not request more than one page every two seconds. </quote>
+ *
+ *      The cache folder may be shared by several tmm instances (e.g. GUI and CLI). Downloads are written to a temp file, forced to the disk
+ *      and moved into place atomically, only one process fetches a given URL at a time (the others wait on its lock file) and the time of
+ *      the last request is kept on disk, so all processes together respect the flood limit.
  */
 public class AniDBCachedUrl {
-  private static final Logger LOGGER        = LoggerFactory.getLogger(AniDBCachedUrl.class);
-  static final private long   ONE_DAY_IN_MS = 24 * 3600 * 1000;
-  private static final Path   CACHE_DIR     = Paths.get("cache");
+  private static final Logger                     LOGGER          = LoggerFactory.getLogger(AniDBCachedUrl.class);
+  static final private long                       ONE_DAY_IN_MS   = 24 * 3600 * 1000;
+  static final private long                       FLOOD_DELAY_MS  = 2000;
+  // FileLocks are held per JVM, so threads of this JVM need their own monitor per lock file
+  private static final ConcurrentMap<Path, Object> FETCH_MONITORS  = new ConcurrentHashMap<>();
+  // requests somebody is waiting for; prefetches only use the slots in between
+  private static final AtomicInteger               ACTIVE_REQUESTS = new AtomicInteger();
 
+  private final Path                               cacheDir;
+  private final Path                               rateLimitFile;
+
+  /**
+   * use tmm's cache folder
+   */
   public AniDBCachedUrl() {
+    this(Paths.get("cache"));
   }
 
-  private Path getCachedFilename(String url) {
-    return CACHE_DIR.resolve(Paths.get("anidb." + md5(url.getBytes(StandardCharsets.UTF_8)) + ".http.raw"));
+  /**
+   * use the given cache folder (e.g. a temporary folder in tests)
+   * 
+   * @param cacheDir
+   *          the cache folder
+   */
+  AniDBCachedUrl(Path cacheDir) {
+    this.cacheDir = cacheDir;
+    this.rateLimitFile = cacheDir.resolve("anidb.lastrequest.lock");
+  }
+
+  private static String getUrlHash(String url) {
+    return md5(url.getBytes(StandardCharsets.UTF_8));
+  }
+
+  private Path getCachedFilename(String urlHash) {
+    return cacheDir.resolve(Paths.get("anidb." + urlHash + ".http.raw"));
+  }
+
+  /**
+   * get the path of the cache file for the given url
+   */
+  Path getCachePath(String url) {
+    return getCachedFilename(getUrlHash(url));
   }
 
   private long getMillisecondsSinceModified(Path file) {
@@ -52,6 +104,31 @@ public class AniDBCachedUrl {
     return new String(fileArray, StandardCharsets.UTF_8);
   }
 
+  /*
+   * the cache files share 16 lock files (by the first hex digit of the url hash), so no lock file is left behind per url
+   */
+  private Path getLockFilename(String urlHash) {
+    return cacheDir.resolve("anidb.fetch." + urlHash.charAt(0) + ".lock");
+  }
+
+  private boolean needsDownload(Path cache) {
+    // an empty file may be left behind by a crash before the content reached the disk - it would be served forever
+    if (isEmptyFile(cache)) {
+      return true;
+    }
+    // Request only once per day
+    return !Files.exists(cache) && getMillisecondsSinceModified(cache) >= ONE_DAY_IN_MS * 2;
+  }
+
+  private boolean isEmptyFile(Path file) {
+    try {
+      return Files.exists(file) && Files.size(file) == 0;
+    }
+    catch (IOException e) {
+      return false;
+    }
+  }
+
   /**
    * returns cached file, or downloads fresh
    * 
@@ -60,37 +137,267 @@ public class AniDBCachedUrl {
    * @throws Exception
    */
   public Path getCachedFile(String url) throws Exception {
-    Path cache = getCachedFilename(url);
-    // Request only once per day
-    if (!Files.exists(cache) && getMillisecondsSinceModified(cache) >= ONE_DAY_IN_MS * 2) {
-      // Prevent doing more than one request per two seconds.
-      waitToPreventFlood();
-      Url u = new Url(url);
-      boolean ok = u.download(cache);
-      if (!ok) {
-        LOGGER.error("Error downloading cached file!");
+    ACTIVE_REQUESTS.incrementAndGet();
+    try {
+      return fetch(url, false);
+    }
+    finally {
+      ACTIVE_REQUESTS.decrementAndGet();
+    }
+  }
+
+  /**
+   * returns cached file, or downloads fresh once no other request is running - for speculative fetches which must not delay requests somebody is
+   * waiting for.<br>
+   * This is best effort: the check is repeated after the wait for the rate limit, right before the download, but a request which comes in while
+   * the download is running still waits for it.
+   * 
+   * @param url
+   * @return
+   * @throws Exception
+   */
+  public Path prefetch(String url) throws Exception {
+    Path cache;
+    do {
+      if (needsDownload(getCachedFilename(getUrlHash(url)))) {
+        while (ACTIVE_REQUESTS.get() > 0) {
+          Thread.sleep(FLOOD_DELAY_MS);
+        }
+      }
+      // null if a request came in while waiting for the rate limit
+      cache = fetch(url, true);
+    } while (cache == null);
+    return cache;
+  }
+
+  /*
+   * returns the cache file; a speculative fetch returns null if it gave way to a request somebody is waiting for
+   */
+  private Path fetch(String url, boolean speculative) throws Exception {
+    String urlHash = getUrlHash(url);
+    Path cache = getCachedFilename(urlHash);
+    ScrapeEvent event = beginEvent(ScrapeEvent.Type.CACHE_LOOKUP, url);
+    if (!needsDownload(cache)) {
+      if (event.isEnabled()) {
+        event.bytes(Files.size(cache)).outcome("hit").commit();
+      }
+      return cache;
+    }
+
+    Path lockFile = getLockFilename(urlHash);
+    synchronized (getFetchMonitor(lockFile)) {
+      Files.createDirectories(cacheDir);
+      try (FileChannel channel = FileChannel.open(lockFile, CREATE, WRITE); FileLock lock = channel.lock()) {
+        // another thread or process may have fetched it while we were waiting
+        if (needsDownload(cache)) {
+          if (!download(url, cache, speculative)) {
+            event.outcome("backed off").commit();
+            return null;
+          }
+          if (event.isEnabled()) {
+            event.outcome(Files.exists(cache) ? "downloaded" : "failed");
+          }
+        }
+        else {
+          event.outcome("fetched by other");
+        }
       }
-      lastRequestEndedTime = System.currentTimeMillis();
     }
+    if (event.isEnabled() && Files.exists(cache)) {
+      event.bytes(Files.size(cache));
+    }
+    event.commit();
     return cache;
   }
 
+  /*
+   * the events carry the aid of anime urls, so they can be grouped with the events of the provider for the same anime
+   */
+  private static ScrapeEvent beginEvent(ScrapeEvent.Type type, String url) {
+    ScrapeEvent event = ScrapeEvent.begin(type);
+    if (event.isEnabled()) {
+      int aid = url.lastIndexOf("&aid=");
+      event.aid(aid < 0 ? "" : url.substring(aid + 5)).urlHash(getUrlHash(url));
+    }
+    return event;
+  }
+
+  private Object getFetchMonitor(Path lockFile) {
+    Object monitor = FETCH_MONITORS.get(lockFile);
+    if (monitor == null) {
+      Object newMonitor = new Object();
+      monitor = FETCH_MONITORS.putIfAbsent(lockFile, newMonitor);
+      if (monitor == null) {
+        monitor = newMonitor;
+      }
+    }
+    return monitor;
+  }
+
+  /**
+   * stores the given content as cached file of the url, e.g. to seed the cache with data from an earlier install. An existing cached file is
+   * kept
+   * 
+   * @param url
+   *          the url the content belongs to
+   * @param content
+   *          the content
+   * @return true if the content has been stored, false if the url has already been cached
+   * @throws IOException
+   */
+  public boolean store(String url, byte[] content) throws IOException {
+    String urlHash = getUrlHash(url);
+    Path cache = getCachedFilename(urlHash);
+    Path lockFile = getLockFilename(urlHash);
+    synchronized (getFetchMonitor(lockFile)) {
+      Files.createDirectories(cacheDir);
+      try (FileChannel channel = FileChannel.open(lockFile, CREATE, WRITE); FileLock lock = channel.lock()) {
+        if (!needsDownload(cache)) {
+          return false;
+        }
+        Path part = cache.resolveSibling(cache.getFileName() + ".part");
+        try {
+          try (FileChannel partChannel = FileChannel.open(part, CREATE, WRITE, TRUNCATE_EXISTING)) {
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+              partChannel.write(buffer);
+            }
+            partChannel.force(true);
+          }
+          moveIntoPlace(part, cache);
+        }
+        finally {
+          Files.deleteIfExists(part);
+        }
+        return true;
+      }
+    }
+  }
+
+  /**
+   * downloads the url to a temp file next to the cache file and moves it into place when complete, so readers never see a partial file. Returns
+   * false if a speculative download gave way to a request somebody is waiting for (nothing has been requested then)
+   */
+  private boolean download(String url, Path cache, boolean speculative) throws Exception {
+    Path part = cache.resolveSibling(cache.getFileName() + ".part");
+    try {
+      // a crashed run may have left a partial download behind
+      Files.deleteIfExists(part);
+
+      boolean ok;
+      synchronized (AniDBCachedUrl.class) {
+        try (FileChannel channel = FileChannel.open(rateLimitFile, CREATE, READ, WRITE); FileLock lock = channel.lock()) {
+          // Prevent doing more than one request per two seconds.
+          ScrapeEvent waitEvent = beginEvent(ScrapeEvent.Type.RATE_LIMIT_WAIT, url);
+          waitToPreventFlood(channel);
+          waitEvent.commit();
+
+          if (speculative && ACTIVE_REQUESTS.get() > 0) {
+            return false;
+          }
+
+          ScrapeEvent downloadEvent = beginEvent(ScrapeEvent.Type.DOWNLOAD, url).outcome("failed");
+          try {
+            ok = downloadTo(url, part);
+            if (downloadEvent.isEnabled() && Files.exists(part)) {
+              downloadEvent.bytes(Files.size(part)).outcome(ok ? "ok" : "error");
+            }
+          }
+          finally {
+            writeLastRequestEndedTime(channel);
+            downloadEvent.commit();
+          }
+        }
+      }
+
+      if (!ok || !Files.exists(part) || Files.size(part) == 0) {
+        LOGGER.error("Error downloading cached file!");
+        return true;
+      }
+
+      // the content has to be on the disk before the rename, otherwise a crash may leave an empty cache file behind
+      try (FileChannel partChannel = FileChannel.open(part, WRITE)) {
+        partChannel.force(true);
+      }
+      moveIntoPlace(part, cache);
+      return true;
+    }
+    finally {
+      Files.deleteIfExists(part);
+    }
+  }
+
+  /*
+   * downloads the url to the given file; overridden in tests
+   */
+  boolean downloadTo(String url, Path file) throws Exception {
+    Url u = new Url(url);
+    return u.download(file);
+  }
+
+  private void moveIntoPlace(Path part, Path cache) throws IOException {
+    try {
+      Files.move(part, cache, ATOMIC_MOVE, REPLACE_EXISTING);
+    }
+    catch (AtomicMoveNotSupportedException e) {
+      Files.move(part, cache, REPLACE_EXISTING);
+    }
+  }
+
   public String getStringContents(String url) throws Exception {
     return readFileToString(getCachedFile(url));
   }
 
   public Document getXmlContents(String url) throws Exception {
-    return Jsoup.parse(getStringContents(url));
+    byte[] contents = Files.readAllBytes(getCachedFile(url));
+    ScrapeEvent event = beginEvent(ScrapeEvent.Type.PARSE, url).bytes(contents.length);
+    // the html parser would wrap the <anime> element into html/body
+    Document doc = Jsoup.parse(new String(contents, StandardCharsets.UTF_8), url, Parser.xmlParser());
+    event.outcome("xml").commit();
+    return doc;
   }
 
   // Tools
-  private long lastRequestEndedTime = 0L;
+  private static long lastRequestEndedTime = 0L;
+
+  /**
+   * waits until two seconds passed since the last request of this or any other process sharing the cache folder; the caller must hold the lock
+   * on the rate limit file
+   */
+  private void waitToPreventFlood(FileChannel rateLimitChannel) throws IOException, InterruptedException {
+    long lastRequest = Math.max(lastRequestEndedTime, readLastRequestEndedTime(rateLimitChannel));
+    long timeSinceLastRequest = System.currentTimeMillis() - lastRequest;
+    if (timeSinceLastRequest >= 0 && timeSinceLastRequest < FLOOD_DELAY_MS) {
+      Thread.sleep(FLOOD_DELAY_MS - timeSinceLastRequest);
+    }
+  }
+
+  long readLastRequestEndedTime(FileChannel rateLimitChannel) throws IOException {
+    ByteBuffer buffer = ByteBuffer.allocate(8);
+    while (buffer.hasRemaining()) {
+      if (rateLimitChannel.read(buffer, buffer.position()) < 0) {
+        // empty or truncated file - no request recorded yet
+        return 0L;
+      }
+    }
+    buffer.flip();
+    return buffer.getLong();
+  }
 
-  private void waitToPreventFlood() throws InterruptedException {
-    long timeSinceLastRequest = System.currentTimeMillis() - lastRequestEndedTime;
-    if (timeSinceLastRequest < 2000) {
-      Thread.sleep(2000 - timeSinceLastRequest);
+  /*
+   * returns the time written
+   */
+  long writeLastRequestEndedTime(FileChannel rateLimitChannel) throws IOException {
+    long now = System.currentTimeMillis();
+    lastRequestEndedTime = now;
+    ByteBuffer buffer = ByteBuffer.allocate(8);
+    buffer.putLong(now);
+    buffer.flip();
+    while (buffer.hasRemaining()) {
+      rateLimitChannel.write(buffer, buffer.position());
     }
+    rateLimitChannel.force(false);
+    return now;
   }
 
   static private String md5(byte[] data) {
@@ -15,22 +15,31 @@
  */
 package org.tinymediamanager.scraper.anidb;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.FileInputStream;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.text.ParseException;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
 import java.util.Collections;
+import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
-import java.util.Locale;
-import java.util.Map.Entry;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 import java.util.zip.GZIPInputStream;
@@ -46,6 +55,7 @@ import org.tinymediamanager.scraper.MediaScrapeOptions;
 import org.tinymediamanager.scraper.MediaSearchOptions;
 import org.tinymediamanager.scraper.MediaSearchResult;
 import org.tinymediamanager.scraper.UnsupportedMediaTypeException;
+import org.tinymediamanager.scraper.config.MediaProviderConfig;
 import org.tinymediamanager.scraper.entities.MediaArtwork;
 import org.tinymediamanager.scraper.entities.MediaCastMember;
 import org.tinymediamanager.scraper.entities.MediaCastMember.CastType;
@@ -54,7 +64,6 @@ import org.tinymediamanager.scraper.entities.MediaGenres;
 import org.tinymediamanager.scraper.entities.MediaType;
 import org.tinymediamanager.scraper.mediaprovider.IMediaArtworkProvider;
 import org.tinymediamanager.scraper.mediaprovider.ITvShowMetadataProvider;
-import org.tinymediamanager.scraper.util.Similarity;
 import org.tinymediamanager.scraper.util.StrgUtils;
 
 import net.xeoh.plugins.base.annotations.PluginImplementation;
@@ -66,25 +75,62 @@ import net.xeoh.plugins.base.annotations.PluginImplementation;
  */
 @PluginImplementation
 public class AniDBMetadataProvider implements ITvShowMetadataProvider, IMediaArtworkProvider {
-  private static final Logger              LOGGER         = LoggerFactory.getLogger(AniDBMetadataProvider.class);
-  private static final String              IMAGE_SERVER   = "http://img7.anidb.net/pics/anime/";
-  private static MediaProviderInfo         providerInfo   = createMediaProviderInfo();
+  private static final Logger              LOGGER            = LoggerFactory.getLogger(AniDBMetadataProvider.class);
+  private static final String              IMAGE_SERVER      = "http://img7.anidb.net/pics/anime/";
+  static final String                      ANIME_URL         = "http://api.anidb.net:9001/httpapi?request=anime&client=tinymediamanager&clientver=2&protover=1&aid=";
+  private static MediaProviderInfo         providerInfo      = createMediaProviderInfo();
   // use tmm's cache folder
-  private static AniDBCachedUrl            aniDBCachedUrl = new AniDBCachedUrl();
-
-  private HashMap<String, List<AniDBShow>> showsForLookup = new HashMap<>();
+  private static AniDBCachedUrl            defaultCachedUrl  = new AniDBCachedUrl();
+  private static RelatedAnimePrefetcher    defaultPrefetcher = new RelatedAnimePrefetcher(defaultCachedUrl, ANIME_URL);
+  private AniDBCachedUrl                   aniDBCachedUrl    = defaultCachedUrl;
+  private RelatedAnimePrefetcher           prefetcher        = defaultPrefetcher;
+  private Path                             titleDump         = null;
+  private FutureTask<TitleIndex>           titleIndexTask    = null;
+  private SearchResultCache                searchCache       = new SearchResultCache(providerInfo.getId(), 500);
 
   private static MediaProviderInfo createMediaProviderInfo() {
     MediaProviderInfo providerInfo = new MediaProviderInfo("anidb", "aniDB",
         "<html><h3>aniDB</h3><br />AniDB stands for Anime DataBase. AniDB is a non-profit anime database that is open freely to the public.</html>",
         AniDBMetadataProvider.class.getResource("/anidb_net.png"));
     providerInfo.setVersion(AniDBMetadataProvider.class);
+
+    // speculative prefetch of the related anime (sequels, prequels, ...) after a TV show has been scraped
+    providerInfo.getConfig().addBoolean("prefetchRelatedAnime", false);
+    // 1 = only the ones related to the scraped show
+    providerInfo.getConfig().addSelect("prefetchRelatedAnimeDepth", new String[] { "1", "2", "3" }, "1");
+    // prefetches per scraped show
+    providerInfo.getConfig().addSelect("prefetchRelatedAnimeCount", new String[] { "5", "10", "20" }, "5");
+    providerInfo.getConfig().load();
     return providerInfo;
   }
 
   public AniDBMetadataProvider() {
   }
 
+  /**
+   * create a provider which builds its title index from the given anime-titles dump rather than the one from AniDB (e.g. for offline tests)
+   * 
+   * @param titleDump
+   *          the gzipped anime-titles.dat
+   */
+  AniDBMetadataProvider(Path titleDump) {
+    this.titleDump = titleDump;
+  }
+
+  /**
+   * create a provider which uses the given cache folder rather than tmm's one (e.g. for offline tests)
+   * 
+   * @param titleDump
+   *          the gzipped anime-titles.dat, or null for the one from AniDB
+   * @param cacheDir
+   *          the cache folder
+   */
+  AniDBMetadataProvider(Path titleDump, Path cacheDir) {
+    this.titleDump = titleDump;
+    this.aniDBCachedUrl = new AniDBCachedUrl(cacheDir);
+    this.prefetcher = new RelatedAnimePrefetcher(aniDBCachedUrl, ANIME_URL);
+  }
+
   @Override
   public MediaProviderInfo getProviderInfo() {
     return providerInfo;
@@ -127,7 +173,7 @@ public class AniDBMetadataProvider implements ITvShowMetadataProvider, IMediaArt
     // http://api.anidb.net:9001/httpapi?request=anime&client=tinymediamanager&clientver=2&protover=1&aid=4242
     Document doc = null;
     try {
-      doc = aniDBCachedUrl.getXmlContents("http://api.anidb.net:9001/httpapi?request=anime&client=tinymediamanager&clientver=2&protover=1&aid=" + id);
+      doc = aniDBCachedUrl.getXmlContents(ANIME_URL + id);
     }
     catch (Exception e) {
       LOGGER.error("failed to get TV show metadata: " + e.getMessage());
@@ -139,6 +185,7 @@ public class AniDBMetadataProvider implements ITvShowMetadataProvider, IMediaArt
 
     md.setId(providerInfo.getId(), id);
 
+    ScrapeEvent event = ScrapeEvent.begin(ScrapeEvent.Type.PARSE).aid(id);
     Element anime = doc.child(0);
 
     for (Element e : anime.children()) {
@@ -185,9 +232,30 @@ public class AniDBMetadataProvider implements ITvShowMetadataProvider, IMediaArt
     // add static "Anime" genre
     md.addGenre(MediaGenres.ANIME);
 
+    event.outcome("tv show").commit();
+
+    // the next season is most likely scraped next
+    configurePrefetcher();
+    prefetcher.prefetchRelated(doc);
+
     return md;
   }
 
+  /*
+   * apply the prefetch settings, since they may have been changed since the last scrape
+   */
+  private void configurePrefetcher() {
+    MediaProviderConfig config = providerInfo.getConfig();
+    try {
+      prefetcher.setLimits(Integer.parseInt(config.getValue("prefetchRelatedAnimeDepth")),
+          Integer.parseInt(config.getValue("prefetchRelatedAnimeCount")));
+    }
+    catch (NumberFormatException e) {
+      LOGGER.warn("invalid prefetch settings: " + e.getMessage());
+    }
+    prefetcher.setEnabled(Boolean.TRUE.equals(config.getValueAsBool("prefetchRelatedAnime")));
+  }
+
   private void getActors(MediaMetadata md, Element e) {
     for (Element character : e.children()) {
       MediaCastMember member = new MediaCastMember(CastType.ACTOR);
@@ -291,45 +359,25 @@ public class AniDBMetadataProvider implements ITvShowMetadataProvider, IMediaArt
       return md;
     }
 
-    Document doc = null;
-    try {
-      doc = aniDBCachedUrl.getXmlContents("http://api.anidb.net:9001/httpapi?request=anime&client=tinymediamanager&clientver=2&protover=1&aid=" + id);
+    // read up to the requested episode only
+    EpisodeReader.Episode episode = null;
+    try (EpisodeReader reader = openEpisodeReader(id, langu, seasonNr, episodeNr, episodeNr)) {
+      md.setId(providerInfo.getId(), id);
+      if (reader.hasNext()) {
+        episode = reader.nextEpisode();
+      }
     }
     catch (Exception e) {
       LOGGER.error("failed to get episode metadata: " + e.getMessage());
     }
 
-    if (doc == null || doc.children().size() == 0) {
-      return md;
-    }
-
-    md.setId(providerInfo.getId(), id);
-
-    List<Episode> episodes = parseEpisodes(doc);
-    Episode episode = null;
-
-    // filter out the episode
-    for (Episode ep : episodes) {
-      if (ep.season == seasonNr && ep.episode == episodeNr) {
-        episode = ep;
-        break;
-      }
-    }
-
     if (episode == null) {
       return md;
     }
 
     md.setSeasonNumber(episode.season);
     md.setEpisodeNumber(episode.episode);
-    String title = episode.titles.get(langu);
-    if (StringUtils.isBlank(title)) {
-      title = episode.titles.get("en");
-    }
-    if (StringUtils.isBlank(title)) {
-      title = episode.titles.get("x-jat");
-    }
-    md.setTitle(title);
+    md.setTitle(episode.title);
     md.setPlot(episode.summary);
     md.setRating(episode.rating);
     try {
@@ -343,118 +391,69 @@ public class AniDBMetadataProvider implements ITvShowMetadataProvider, IMediaArt
     return md;
   }
 
-  private List<Episode> parseEpisodes(Document doc) {
-    List<Episode> episodes = new ArrayList<>();
+  /**
+   * read the episodes of the show one at a time rather than building up the whole list; memory usage does not depend on the length of the
+   * show. Only the titles in the scrape language (with en and x-jat as fallback) are kept.<br>
+   * The anime XML is parsed while iterating, so a malformed file is reported by {@link EpisodeReader#hasNext()} with an
+   * {@link IllegalStateException} (the reader is closed afterwards).
+   * 
+   * @param options
+   *          the scrape options containing the AniDB id and the language
+   * @param season
+   *          the season to read (1 = regular episodes, 0 = specials, -1 = all)
+   * @param firstEpisode
+   *          the first episode number to read (-1 = from the first one)
+   * @param lastEpisode
+   *          the last episode number to read (-1 = up to the last one)
+   * @return the episode reader - close it if you stop reading before the last episode
+   * @throws Exception
+   */
+  public EpisodeReader getEpisodes(MediaScrapeOptions options, int season, int firstEpisode, int lastEpisode) throws Exception {
+    String id = "";
 
-    Element anime = doc.child(0);
-    Element eps = null;
-    // find the "episodes" child
-    for (Element e : anime.children()) {
-      if ("episodes".equalsIgnoreCase(e.tagName())) {
-        eps = e;
-        break;
-      }
+    // id from result
+    if (options.getResult() != null) {
+      id = options.getResult().getId();
     }
 
-    if (eps == null) {
-      return episodes;
+    // do we have an id from the options?
+    if (StringUtils.isEmpty(id)) {
+      id = options.getId(providerInfo.getId());
     }
 
-    for (Element e : eps.children()) {
-      // filter out the desired episode
-      if ("episode".equals(e.tagName())) {
-        Episode episode = new Episode();
-        try {
-          episode.id = Integer.parseInt(e.attr("id"));
-        }
-        catch (NumberFormatException ignored) {
-        }
-        for (Element episodeInfo : e.children()) {
-          if ("epno".equalsIgnoreCase(episodeInfo.tagName())) {
-            try {
-              episode.episode = Integer.parseInt(episodeInfo.text());
-
-              // looks like anidb is storing anything in a single season, so put
-              // 1 to season, if type = 1
-              if ("1".equals(episodeInfo.attr("type"))) {
-                episode.season = 1;
-              }
-              else {
-                // else - we see them as "specials"
-                episode.season = 0;
-              }
-
-            }
-            catch (NumberFormatException ignored) {
-            }
-            continue;
-          }
-
-          if ("length".equalsIgnoreCase(episodeInfo.tagName())) {
-            try {
-              episode.runtime = Integer.parseInt(episodeInfo.text());
-            }
-            catch (NumberFormatException ignored) {
-            }
-            continue;
-          }
-
-          if ("airdate".equalsIgnoreCase(episodeInfo.tagName())) {
-            episode.airdate = episodeInfo.text();
-            continue;
-          }
-
-          if ("rating".equalsIgnoreCase(episodeInfo.tagName())) {
-            try {
-              episode.rating = Float.parseFloat(episodeInfo.text());
-            }
-            catch (NumberFormatException ignored) {
-            }
-            continue;
-          }
+    if (StringUtils.isEmpty(id)) {
+      return EpisodeReader.empty(providerInfo.getId());
+    }
 
-          if ("title".equalsIgnoreCase(episodeInfo.tagName())) {
-            try {
-              episode.titles.put(episodeInfo.attr("xml:lang").toLowerCase(Locale.ROOT), episodeInfo.text());
-            }
-            catch (Exception ignored) {
-            }
-            continue;
-          }
+    return openEpisodeReader(id, options.getLanguage().getLanguage(), season, firstEpisode, lastEpisode);
+  }
 
-          if ("summary".equalsIgnoreCase(episodeInfo.tagName())) {
-            episode.summary = episodeInfo.text();
-            continue;
-          }
-        }
-        episodes.add(episode);
-      }
+  private EpisodeReader openEpisodeReader(String id, String language, int season, int firstEpisode, int lastEpisode) throws Exception {
+    Path anime = aniDBCachedUrl.getCachedFile(ANIME_URL + id);
+    if (!Files.exists(anime)) {
+      return EpisodeReader.empty(providerInfo.getId());
     }
-
-    return episodes;
+    return new EpisodeReader(providerInfo.getId(), new BufferedInputStream(Files.newInputStream(anime)), language, season, firstEpisode,
+        lastEpisode);
   }
 
   @Override
   public List<MediaSearchResult> search(MediaSearchOptions options) throws Exception {
-    LOGGER.debug("search() " + options.toString());
+    LOGGER.debug("search() {}", options);
 
     if (options.getMediaType() != MediaType.TV_SHOW) {
       throw new UnsupportedMediaTypeException(options.getMediaType());
     }
 
-    synchronized (AniDBMetadataProvider.class) {
-      // first run: build up the anime name list
-      if (showsForLookup.size() == 0) {
-        buildTitleHashMap();
-      }
-    }
+    // first run: build up the anime name list
+    TitleIndex index = getTitleIndex(-1);
 
     List<MediaSearchResult> results = new ArrayList<>();
 
     // detect the string to search
     String searchString = "";
     if (StringUtils.isNotEmpty(options.getQuery())) {
-      searchString = options.getQuery();
+      searchString = TitleNormalizer.normalize(options.getQuery());
     }
 
     // return an empty search result if no query provided
@@ -462,20 +461,38 @@ public class AniDBMetadataProvider implements ITvShowMetadataProvider, IMediaArt
       return results;
     }
 
+    ScrapeEvent event = ScrapeEvent.begin(ScrapeEvent.Type.SEARCH);
+    // the title dump could not be loaded - the next search builds the index again, so the empty result must not be cached
+    if (index.titles.isEmpty()) {
+      event.outcome("no index").commit();
+      return results;
+    }
+
+    // equivalent queries are answered from the cache
+    String cacheKey = SearchResultCache.createKey(searchString, getLanguage(options));
+    List<MediaSearchResult> cachedResults = searchCache.get(cacheKey);
+    if (cachedResults != null) {
+      event.outcome("cached").commit();
+      return cachedResults;
+    }
+
     List<Integer> foundIds = new ArrayList<>();
-    for (Entry<String, List<AniDBShow>> entry : showsForLookup.entrySet()) {
-      String title = entry.getKey();
-      float score = Similarity.compareStrings(title, searchString);
-      if (score > 0.4) {
-        for (AniDBShow show : entry.getValue()) {
-          if (!foundIds.contains(show.aniDbId)) {
-            MediaSearchResult result = new MediaSearchResult(providerInfo.getId(), MediaType.TV_SHOW);
-            result.setId(String.valueOf(show.aniDbId));
-            result.setTitle(show.title);
-            results.add(result);
-            result.setScore(score);
-            foundIds.add(show.aniDbId);
-          }
+
+    // exact hits of the normalized title (or the same words in another order) need no fuzzy scoring
+    for (AniDBTitle title : index.getExactTitles(searchString)) {
+      addSearchResults(results, foundIds, title, 1.0f);
+    }
+
+    event.outcome("exact");
+    if (results.isEmpty()) {
+      event.outcome("fuzzy");
+      // letter pair score of the normalized title and query; the letter pairs of the titles have been created while building the index
+      int[] searchPairs = LetterPairScorer.letterPairs(searchString);
+
+      for (AniDBTitle title : index.titles.values()) {
+        float score = LetterPairScorer.compare(title.letterPairs, searchPairs);
+        if (score > 0.4) {
+          addSearchResults(results, foundIds, title, score);
         }
       }
     }
@@ -484,9 +501,175 @@ public class AniDBMetadataProvider implements ITvShowMetadataProvider, IMediaArt
     Collections.sort(results);
     Collections.reverse(results);
 
+    searchCache.put(cacheKey, results);
+    event.commit();
+
     return results;
   }
 
+  /**
+   * search with a time budget, e.g. for an as-you-type search. The most promising candidates are scored first: exact hits of the normalized title,
+   * titles starting with the query and then all titles (the ones containing a primary title first). Every anime keeps the best score of its
+   * titles. Every result which makes it into the best <i>maxResults</i> is passed to the listener as soon as it has been found (again, if a better
+   * title of the anime is found later); when the time budget is used up, the best results found so far are returned.
+   * 
+   * @param options
+   *          the search options
+   * @param timeBudgetMs
+   *          the time budget in milliseconds
+   * @param maxResults
+   *          the maximum amount of results
+   * @param listener
+   *          the listener for the results found (may be null)
+   * @return the best results found within the time budget, sorted by score
+   * @throws Exception
+   */
+  public List<MediaSearchResult> search(MediaSearchOptions options, long timeBudgetMs, int maxResults, ISearchResultListener listener)
+      throws Exception {
+    LOGGER.debug("search() {} within {}ms", options, timeBudgetMs);
+
+    if (options.getMediaType() != MediaType.TV_SHOW) {
+      throw new UnsupportedMediaTypeException(options.getMediaType());
+    }
+
+    long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeBudgetMs);
+    TopResults results = new TopResults(maxResults, listener);
+
+    // detect the string to search
+    String searchString = "";
+    if (StringUtils.isNotEmpty(options.getQuery())) {
+      searchString = TitleNormalizer.normalize(options.getQuery());
+    }
+
+    // return an empty search result if no query provided
+    if (StringUtils.isEmpty(searchString) || maxResults < 1) {
+      return results.getSortedResults();
+    }
+
+    // the first search has to wait for the index - but not longer than the time budget. If the title dump could not be loaded, the next search
+    // builds the index again
+    ScrapeEvent event = ScrapeEvent.begin(ScrapeEvent.Type.SEARCH);
+    TitleIndex index = getTitleIndex(timeBudgetMs);
+    if (index == null || index.titles.isEmpty()) {
+      event.outcome("no index").commit();
+      return results.getSortedResults();
+    }
+
+    // a completed search for an equivalent query is the best we can get
+    List<MediaSearchResult> cachedResults = searchCache.get(SearchResultCache.createKey(searchString, getLanguage(options)));
+    if (cachedResults != null) {
+      for (MediaSearchResult result : cachedResults) {
+        results.offer(result);
+      }
+      event.outcome("cached").commit();
+      return results.getSortedResults();
+    }
+
+    // 1. exact hits
+    event.outcome("exact");
+    for (AniDBTitle title : index.getExactTitles(searchString)) {
+      offerSearchResults(results, title, 1.0f);
+    }
+    if (results.isFull()) {
+      event.commit();
+      return results.getSortedResults();
+    }
+
+    // 2. titles starting with the query
+    event.outcome("prefix");
+    int[] searchPairs = LetterPairScorer.letterPairs(searchString);
+    int position = Arrays.binarySearch(index.sortedTitles, searchString);
+    if (position < 0) {
+      position = -position - 1;
+    }
+    for (int i = position; i < index.sortedTitles.length && index.sortedTitles[i].startsWith(searchString) && !results.isFull(); i++) {
+      if (System.nanoTime() - deadline > 0) {
+        event.outcome("prefix, timed out").commit();
+        return results.getSortedResults();
+      }
+      AniDBTitle title = index.titles.get(index.sortedTitles[i]);
+      float score = LetterPairScorer.compare(title.letterPairs, searchPairs);
+      if (score > 0.4) {
+        offerSearchResults(results, title, score);
+      }
+    }
+
+    // 3. fuzzy search over all titles until the time budget is used up
+    event.outcome("fuzzy");
+    for (int i = 0; i < index.titlesByPriority.length; i++) {
+      if ((i & 1023) == 0 && System.nanoTime() - deadline > 0) {
+        event.outcome("fuzzy, timed out");
+        break;
+      }
+      AniDBTitle title = index.titlesByPriority[i];
+      float score = LetterPairScorer.compare(title.letterPairs, searchPairs);
+      if (score > 0.4) {
+        offerSearchResults(results, title, score);
+      }
+    }
+    event.commit();
+
+    return results.getSortedResults();
+  }
+
+  private String getLanguage(MediaSearchOptions options) {
+    return options.getLanguage() != null ? options.getLanguage().getLanguage() : "";
+  }
+
+  private void addSearchResults(List<MediaSearchResult> results, List<Integer> foundIds, AniDBTitle title, float score) {
+    for (AniDBShow show : title.shows) {
+      if (!foundIds.contains(show.aniDbId)) {
+        results.add(createSearchResult(show, score));
+        foundIds.add(show.aniDbId);
+      }
+    }
+  }
+
+  private void offerSearchResults(TopResults results, AniDBTitle title, float score) {
+    for (AniDBShow show : title.shows) {
+      String id = String.valueOf(show.aniDbId);
+      if (results.accepts(id, score)) {
+        results.offer(createSearchResult(show, score));
+      }
+    }
+  }
+
+  private MediaSearchResult createSearchResult(AniDBShow show, float score) {
+    MediaSearchResult result = new MediaSearchResult(providerInfo.getId(), MediaType.TV_SHOW);
+    result.setId(String.valueOf(show.aniDbId));
+    result.setTitle(show.title);
+    result.setScore(score);
+    return result;
+  }
+
+  /**
+   * forget all cached search results
+   */
+  void clearSearchCache() {
+    searchCache.clear();
+  }
+
+  /**
+   * get the amount of searches which have been answered from the search cache
+   */
+  public long getSearchCacheHitCount() {
+    return searchCache.getHitCount();
+  }
+
+  /**
+   * get the amount of searches which needed a scan of the title index
+   */
+  public long getSearchCacheMissCount() {
+    return searchCache.getMissCount();
+  }
+
+  /**
+   * get the share of the searches which have been answered from the search cache (0 - 1)
+   */
+  public double getSearchCacheHitRate() {
+    return searchCache.getHitRate();
+  }
+
   @Override
   public List<MediaEpisode> getEpisodeList(MediaScrapeOptions options) throws Exception {
     List<MediaEpisode> episodes = new ArrayList<>();
@@ -508,52 +691,80 @@ public class AniDBMetadataProvider implements ITvShowMetadataProvider, IMediaArt
       return episodes;
     }
 
-    Document doc = null;
-    try {
-      doc = aniDBCachedUrl.getXmlContents("http://api.anidb.net:9001/httpapi?request=anime&client=tinymediamanager&clientver=2&protover=1&aid=" + id);
+    try (EpisodeReader reader = openEpisodeReader(id, langu, -1, -1, -1)) {
+      while (reader.hasNext()) {
+        episodes.add(reader.next());
+      }
     }
     catch (Exception e) {
       LOGGER.error("error getting episode list: " + e.getMessage());
     }
 
-    if (doc == null || doc.children().size() == 0) {
-      return episodes;
-    }
+    return episodes;
+  }
 
-    // filter out the episode
-    for (Episode ep : parseEpisodes(doc)) {
-      MediaEpisode episode = new MediaEpisode(getProviderInfo().getId());
-      episode.title = ep.titles.get(langu);
-      episode.season = ep.season;
-      episode.episode = ep.episode;
-      if (StringUtils.isBlank(episode.title)) {
-        episode.title = ep.titles.get("en");
-      }
-      if (StringUtils.isBlank(episode.title)) {
-        episode.title = ep.titles.get("x-jat");
+  /*
+   * get the title index; the first call starts building it in the background. Waits at most timeoutMs (or forever if negative) and returns null
+   * if the index is not ready by then
+   */
+  private TitleIndex getTitleIndex(long timeoutMs) throws InterruptedException {
+    FutureTask<TitleIndex> task;
+    synchronized (this) {
+      if (titleIndexTask == null) {
+        titleIndexTask = new FutureTask<>(new Callable<TitleIndex>() {
+          @Override
+          public TitleIndex call() {
+            return buildTitleHashMap();
+          }
+        });
+        Thread thread = new Thread(titleIndexTask, "anidb-title-index");
+        thread.setDaemon(true);
+        thread.start();
       }
+      task = titleIndexTask;
+    }
 
-      episode.plot = ep.summary;
-      episode.rating = ep.rating;
-      episode.firstAired = ep.airdate;
-      episode.ids.put(providerInfo.getId(), ep.id);
+    TitleIndex index;
+    try {
+      index = timeoutMs < 0 ? task.get() : task.get(timeoutMs, TimeUnit.MILLISECONDS);
+    }
+    catch (TimeoutException e) {
+      return null;
+    }
+    catch (ExecutionException e) {
+      LOGGER.error("error getting AniDB index", e.getCause());
+      index = new TitleIndex();
     }
 
-    return episodes;
+    if (index.titles.isEmpty()) {
+      // try again on the next search
+      synchronized (this) {
+        if (titleIndexTask == task) {
+          titleIndexTask = null;
+        }
+      }
+    }
+    return index;
   }
 
   /*
    * build up the hashmap for a fast title search
    */
-  private void buildTitleHashMap() {
+  TitleIndex buildTitleHashMap() {
     // <aid>|<type>|<language>|<title>
     // type: 1=primary title (one per anime), 2=synonyms (multiple per anime),
     // 3=shorttitles (multiple per anime), 4=official title (one per
     // language)
     Pattern pattern = Pattern.compile("^(?!#)(\\d+)[|](\\d)[|]([\\w-]+)[|](.+)$");
+    TitleIndex index = new TitleIndex();
+
+    ScrapeEvent event = ScrapeEvent.begin(ScrapeEvent.Type.TITLE_INDEX_BUILD).outcome("error");
     try {
 
-      Path titles = aniDBCachedUrl.getCachedFile("http://anidb.net/api/anime-titles.dat.gz");
+      Path titles = titleDump != null ? titleDump : aniDBCachedUrl.getCachedFile("http://anidb.net/api/anime-titles.dat.gz");
+      if (event.isEnabled()) {
+        event.bytes(titles.toFile().length());
+      }
       InputStream fileStream = new FileInputStream(titles.toFile());
       InputStream gzipStream = new GZIPInputStream(fileStream);
       Reader decoder = new InputStreamReader(gzipStream, StandardCharsets.UTF_8);
@@ -565,23 +776,71 @@ public class AniDBMetadataProvider implements ITvShowMetadataProvider, IMediaArt
         if (matcher.matches()) {
           AniDBShow show = new AniDBShow();
           show.aniDbId = Integer.parseInt(matcher.group(1));
+          show.type = Integer.parseInt(matcher.group(2));
           show.language = matcher.group(3);
           show.title = matcher.group(4);
 
-          List<AniDBShow> shows = showsForLookup.get(show.title);
-          if (shows == null) {
-            shows = new ArrayList<>();
-            showsForLookup.put(show.title, shows);
+          // all the normalization is done once here rather than on every search
+          String normalizedTitle = TitleNormalizer.normalize(show.title);
+          // blank title
+          if (normalizedTitle.isEmpty()) {
+            continue;
+          }
+
+          AniDBTitle title = index.titles.get(normalizedTitle);
+          if (title == null) {
+            title = new AniDBTitle();
+            title.letterPairs = LetterPairScorer.letterPairs(normalizedTitle);
+            index.titles.put(normalizedTitle, title);
+
+            String words = TitleNormalizer.tokenKey(normalizedTitle);
+            List<AniDBTitle> sameWords = index.titlesByWords.get(words);
+            if (sameWords == null) {
+              sameWords = new ArrayList<>(1);
+              index.titlesByWords.put(words, sameWords);
+            }
+            sameWords.add(title);
           }
 
-          shows.add(show);
+          title.shows.add(show);
+          if (show.type == 1) {
+            title.primary = true;
+          }
         }
       }
       br.close();
+
+      index.sortedTitles = index.titles.keySet().toArray(new String[index.titles.size()]);
+      Arrays.sort(index.sortedTitles);
+
+      List<AniDBTitle> byPriority = new ArrayList<>(index.titles.size());
+      for (AniDBTitle title : index.titles.values()) {
+        if (title.primary) {
+          byPriority.add(title);
+        }
+      }
+      for (AniDBTitle title : index.titles.values()) {
+        if (!title.primary) {
+          byPriority.add(title);
+        }
+      }
+      index.titlesByPriority = byPriority.toArray(new AniDBTitle[byPriority.size()]);
+
+      if (event.isEnabled()) {
+        event.outcome(index.titles.size() + " titles");
+      }
     }
     catch (Exception e) {
       LOGGER.error("error getting AniDB index", e);
     }
+    finally {
+      event.commit();
+    }
+
+    // cached results belong to the old index
+    searchCache.clear();
+
+    return index;
   }
 
   @Override
@@ -631,21 +890,116 @@ public class AniDBMetadataProvider implements ITvShowMetadataProvider, IMediaArt
    ****************************************************************************/
   private static class AniDBShow {
     int    aniDbId;
+    int    type;
     String language;
     String title;
   }
 
   /****************************************************************************
-   * helper class for episode extraction
+   * helper class to hold all shows of a normalized title together with its precomputed letter pairs
    ****************************************************************************/
-  private static class Episode {
-    int                     id      = -1;
-    int                     episode = -1;
-    int                     season  = -1;
-    int                     runtime = 0;
-    String                  airdate = "";
-    float                   rating  = 0;
-    String                  summary = "";
-    HashMap<String, String> titles  = new HashMap<>();
+  private static class AniDBTitle {
+    int[]           letterPairs;
+    boolean         primary = false;
+    List<AniDBShow> shows   = new ArrayList<>(1);
+  }
+
+  /****************************************************************************
+   * helper class holding the title index; it is built once and not changed afterwards
+   ****************************************************************************/
+  static class TitleIndex {
+    // key: normalized title
+    HashMap<String, AniDBTitle>       titles           = new HashMap<>();
+    // key: sorted words of the normalized title
+    HashMap<String, List<AniDBTitle>> titlesByWords    = new HashMap<>();
+    // the normalized titles in ascending order for prefix lookups
+    String[]                          sortedTitles     = new String[0];
+    // titles containing a primary title first
+    AniDBTitle[]                      titlesByPriority = new AniDBTitle[0];
+
+    /*
+     * the titles matching the normalized query (or containing the same words in another order)
+     */
+    List<AniDBTitle> getExactTitles(String normalizedQuery) {
+      List<AniDBTitle> exactTitles = new ArrayList<>();
+      AniDBTitle exactTitle = titles.get(normalizedQuery);
+      if (exactTitle != null) {
+        exactTitles.add(exactTitle);
+      }
+      List<AniDBTitle> sameWordTitles = titlesByWords.get(TitleNormalizer.tokenKey(normalizedQuery));
+      if (sameWordTitles != null) {
+        for (AniDBTitle title : sameWordTitles) {
+          if (title != exactTitle) {
+            exactTitles.add(title);
+          }
+        }
+      }
+      return exactTitles;
+    }
+  }
+
+  /****************************************************************************
+   * helper class to keep the best n search results of an incremental search (one per anime, with its best score)
+   ****************************************************************************/
+  private static class TopResults {
+    private final int                              maxResults;
+    private final ISearchResultListener            listener;
+    private final PriorityQueue<MediaSearchResult> results;
+    // the results in the queue by id
+    private final Map<String, MediaSearchResult>   resultsById = new HashMap<>();
+
+    TopResults(int maxResults, ISearchResultListener listener) {
+      this.maxResults = maxResults;
+      this.listener = listener;
+      // the worst result at the head
+      this.results = new PriorityQueue<>(Math.max(maxResults, 1), new Comparator<MediaSearchResult>() {
+        @Override
+        public int compare(MediaSearchResult o1, MediaSearchResult o2) {
+          return Float.compare(o1.getScore(), o2.getScore());
+        }
+      });
+    }
+
+    boolean isFull() {
+      return results.size() >= maxResults;
+    }
+
+    /*
+     * would a result of this anime with this score change the results?
+     */
+    boolean accepts(String id, float score) {
+      MediaSearchResult existing = resultsById.get(id);
+      if (existing != null) {
+        return score > existing.getScore();
+      }
+      return maxResults > 0 && (!isFull() || score > results.peek().getScore());
+    }
+
+    void offer(MediaSearchResult result) {
+      if (!accepts(result.getId(), result.getScore())) {
+        return;
+      }
+      MediaSearchResult existing = resultsById.remove(result.getId());
+      if (existing != null) {
+        // a better title of the same anime
+        results.remove(existing);
+      }
+      else if (isFull()) {
+        // pushed out - it may come back with a better title later
+        resultsById.remove(results.poll().getId());
+      }
+      results.add(result);
+      resultsById.put(result.getId(), result);
+      if (listener != null) {
+        listener.resultFound(result);
+      }
+    }
+
+    List<MediaSearchResult> getSortedResults() {
+      List<MediaSearchResult> sorted = new ArrayList<>(results);
+      Collections.sort(sorted);
+      Collections.reverse(sorted);
+      return sorted;
+    }
   }
 }
@@ -0,0 +1,333 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+
+import org.apache.commons.lang3.StringUtils;
+import org.tinymediamanager.scraper.entities.MediaEpisode;
+
+/**
+ * The class EpisodeReader - reads the episodes of an anime XML one &lt;episode&gt; at a time, so the memory needed does not depend on the length
+ * of the show.<br>
+ * Only the titles in the requested language and the fallbacks (en, x-jat) are kept, and episodes outside the requested season/episode range are
+ * skipped while reading. The reader closes the underlying stream when the last episode has been read; close it yourself if you stop earlier.
+ *
+ * @author Manuel Laggner
+ */
+public class EpisodeReader implements Iterator<MediaEpisode>, Closeable {
+  private static final XMLInputFactory FACTORY  = createFactory();
+
+  private final String                 providerId;
+  private final InputStream            inputStream;
+  private final XMLStreamReader        reader;
+  private final String                 language;
+  private final int                    season;
+  private final int                    firstEpisode;
+  private final int                    lastEpisode;
+  private final ScrapeEvent            event;
+
+  private Episode                      next     = null;
+  private boolean                      finished = false;
+  private int                          count    = 0;
+
+  /**
+   * @param providerId
+   *          the provider id for the created MediaEpisodes
+   * @param inputStream
+   *          the anime XML
+   * @param language
+   *          the language of the titles
+   * @param season
+   *          the season to read (1 = regular episodes, 0 = specials, -1 = all)
+   * @param firstEpisode
+   *          the first episode number to read (-1 = from the first one)
+   * @param lastEpisode
+   *          the last episode number to read (-1 = up to the last one)
+   * @throws XMLStreamException
+   */
+  EpisodeReader(String providerId, InputStream inputStream, String language, int season, int firstEpisode, int lastEpisode)
+      throws XMLStreamException {
+    this.providerId = providerId;
+    this.inputStream = inputStream;
+    this.reader = FACTORY.createXMLStreamReader(inputStream);
+    this.language = language;
+    this.season = season;
+    this.firstEpisode = firstEpisode;
+    this.lastEpisode = lastEpisode;
+    this.event = ScrapeEvent.begin(ScrapeEvent.Type.PARSE);
+  }
+
+  /*
+   * a reader without any episode
+   */
+  static EpisodeReader empty(String providerId) throws XMLStreamException {
+    return new EpisodeReader(providerId, new ByteArrayInputStream("<anime/>".getBytes(StandardCharsets.UTF_8)), "", -1, -1, -1);
+  }
+
+  private static XMLInputFactory createFactory() {
+    XMLInputFactory factory = XMLInputFactory.newInstance();
+    factory.setProperty(XMLInputFactory.IS_COALESCING, Boolean.TRUE);
+    factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+    factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+    return factory;
+  }
+
+  /**
+   * @throws IllegalStateException
+   *           if the anime XML is malformed; the reader is closed then
+   */
+  @Override
+  public boolean hasNext() {
+    if (next == null && !finished) {
+      try {
+        next = readNextEpisode();
+      }
+      catch (XMLStreamException e) {
+        closeQuietly();
+        throw new IllegalStateException("error reading episodes", e);
+      }
+    }
+    return next != null;
+  }
+
+  @Override
+  public MediaEpisode next() {
+    Episode ep = nextEpisode();
+
+    MediaEpisode episode = new MediaEpisode(providerId);
+    episode.title = ep.title;
+    episode.season = ep.season;
+    episode.episode = ep.episode;
+    episode.plot = ep.summary;
+    episode.rating = ep.rating;
+    episode.firstAired = ep.airdate;
+    episode.ids.put(providerId, ep.id);
+    return episode;
+  }
+
+  /*
+   * the next episode with all the details AniDB offers
+   */
+  Episode nextEpisode() {
+    if (!hasNext()) {
+      throw new NoSuchElementException();
+    }
+    Episode episode = next;
+    next = null;
+    return episode;
+  }
+
+  @Override
+  public void remove() {
+    throw new UnsupportedOperationException();
+  }
+
+  @Override
+  public void close() throws IOException {
+    if (!finished) {
+      finished = true;
+      if (event.isEnabled()) {
+        event.outcome(count + " episodes");
+      }
+      event.commit();
+    }
+    try {
+      reader.close();
+    }
+    catch (XMLStreamException e) {
+      throw new IOException(e);
+    }
+    finally {
+      inputStream.close();
+    }
+  }
+
+  private void closeQuietly() {
+    try {
+      close();
+    }
+    catch (IOException ignored) {
+    }
+  }
+
+  private Episode readNextEpisode() throws XMLStreamException {
+    while (reader.hasNext()) {
+      int type = reader.next();
+      if (type == XMLStreamConstants.START_ELEMENT && "episode".equalsIgnoreCase(reader.getLocalName())) {
+        Episode episode = readEpisode();
+        if (matches(episode)) {
+          count++;
+          return episode;
+        }
+      }
+      // nothing of interest behind the episode list
+      else if (type == XMLStreamConstants.END_ELEMENT && "episodes".equalsIgnoreCase(reader.getLocalName())) {
+        break;
+      }
+    }
+    closeQuietly();
+    return null;
+  }
+
+  private boolean matches(Episode episode) {
+    if (season >= 0 && episode.season != season) {
+      return false;
+    }
+    if (firstEpisode >= 0 && episode.episode < firstEpisode) {
+      return false;
+    }
+    if (lastEpisode >= 0 && episode.episode > lastEpisode) {
+      return false;
+    }
+    return true;
+  }
+
+  /*
+   * read the current <episode> element; the reader is positioned at its end afterwards
+   */
+  private Episode readEpisode() throws XMLStreamException {
+    Episode episode = new Episode();
+    try {
+      episode.id = Integer.parseInt(reader.getAttributeValue(null, "id"));
+    }
+    catch (NumberFormatException ignored) {
+    }
+
+    String titleEN = null;
+    String titleXJat = null;
+
+    while (reader.hasNext()) {
+      int type = reader.next();
+      if (type == XMLStreamConstants.END_ELEMENT && "episode".equalsIgnoreCase(reader.getLocalName())) {
+        break;
+      }
+      if (type != XMLStreamConstants.START_ELEMENT) {
+        continue;
+      }
+
+      String tagName = reader.getLocalName();
+      if ("epno".equalsIgnoreCase(tagName)) {
+        String epnoType = reader.getAttributeValue(null, "type");
+        try {
+          episode.episode = Integer.parseInt(reader.getElementText().trim());
+
+          // looks like anidb is storing anything in a single season, so put
+          // 1 to season, if type = 1
+          if ("1".equals(epnoType)) {
+            episode.season = 1;
+          }
+          else {
+            // else - we see them as "specials"
+            episode.season = 0;
+          }
+        }
+        catch (NumberFormatException ignored) {
+        }
+        continue;
+      }
+
+      if ("length".equalsIgnoreCase(tagName)) {
+        try {
+          episode.runtime = Integer.parseInt(reader.getElementText().trim());
+        }
+        catch (NumberFormatException ignored) {
+        }
+        continue;
+      }
+
+      if ("airdate".equalsIgnoreCase(tagName)) {
+        episode.airdate = reader.getElementText();
+        continue;
+      }
+
+      if ("rating".equalsIgnoreCase(tagName)) {
+        try {
+          episode.rating = Float.parseFloat(reader.getElementText().trim());
+        }
+        catch (NumberFormatException ignored) {
+        }
+        continue;
+      }
+
+      if ("title".equalsIgnoreCase(tagName)) {
+        // only keep the titles we could use
+        String lang = getLanguage();
+        if (language.equalsIgnoreCase(lang)) {
+          episode.title = reader.getElementText();
+        }
+        else if ("en".equalsIgnoreCase(lang)) {
+          titleEN = reader.getElementText();
+        }
+        else if ("x-jat".equalsIgnoreCase(lang)) {
+          titleXJat = reader.getElementText();
+        }
+        continue;
+      }
+
+      if ("summary".equalsIgnoreCase(tagName)) {
+        episode.summary = reader.getElementText();
+        continue;
+      }
+    }
+
+    if (StringUtils.isBlank(episode.title)) {
+      episode.title = titleEN;
+    }
+    if (StringUtils.isBlank(episode.title)) {
+      episode.title = titleXJat;
+    }
+
+    return episode;
+  }
+
+  /*
+   * the value of the xml:lang attribute
+   */
+  private String getLanguage() {
+    for (int i = 0; i < reader.getAttributeCount(); i++) {
+      if ("lang".equals(reader.getAttributeLocalName(i))) {
+        return reader.getAttributeValue(i);
+      }
+    }
+    return "";
+  }
+
+  /****************************************************************************
+   * helper class for episode extraction
+   ****************************************************************************/
+  static class Episode {
+    int    id      = -1;
+    int    episode = -1;
+    int    season  = -1;
+    int    runtime = 0;
+    String airdate = "";
+    float  rating  = 0;
+    String summary = "";
+    String title   = null;
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import org.tinymediamanager.scraper.MediaSearchResult;
+
+/**
+ * The interface ISearchResultListener - receives the results of an incremental search as soon as they have been found.
+ * 
+ * @author Manuel Laggner
+ */
+public interface ISearchResultListener {
+  /**
+   * a result which is (for now) one of the best results of the search has been found. It may be displaced by a better one found later
+   * 
+   * @param result
+   *          the found result
+   */
+  void resultFound(MediaSearchResult result);
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import java.util.Arrays;
+
+/**
+ * The class LetterPairScorer - an allocation free variant of {@link org.tinymediamanager.scraper.util.Similarity#compareStrings(String, String)}
+ * for the search loop.<br>
+ * Both strings are turned into their (upper cased) letter pairs once; every pair is packed into an int and the pairs are sorted, so the
+ * intersection can be counted by merging two arrays. The score is the same as the one of Similarity (2 * common pairs / all pairs).
+ * 
+ * @author Manuel Laggner
+ */
+final class LetterPairScorer {
+  private static final int[] NO_PAIRS = new int[0];
+
+  private LetterPairScorer() {
+  }
+
+  /**
+   * get the sorted letter pairs of all words in the given string
+   * 
+   * @param str
+   *          the string to split into letter pairs
+   * @return the letter pairs (first char in the upper 16 bits, second char in the lower 16 bits) in ascending order
+   */
+  static int[] letterPairs(String str) {
+    if (str == null) {
+      return NO_PAIRS;
+    }
+
+    String upper = str.toUpperCase();
+    int[] pairs = new int[Math.max(upper.length() - 1, 0)];
+    int count = 0;
+    for (int i = 0; i < upper.length() - 1; i++) {
+      char first = upper.charAt(i);
+      char second = upper.charAt(i + 1);
+      // pairs never span words
+      if (isWhitespace(first) || isWhitespace(second)) {
+        continue;
+      }
+      pairs[count++] = (first << 16) | second;
+    }
+
+    if (count < pairs.length) {
+      pairs = Arrays.copyOf(pairs, count);
+    }
+    Arrays.sort(pairs);
+    return pairs;
+  }
+
+  /**
+   * compare two sets of letter pairs created by {@link #letterPairs(String)}
+   * 
+   * @return the similarity between 0 (nothing in common) and 1 (same pairs)
+   */
+  static float compare(int[] pairs1, int[] pairs2) {
+    int union = pairs1.length + pairs2.length;
+    if (union == 0) {
+      return 0;
+    }
+
+    int intersection = 0;
+    int i = 0;
+    int j = 0;
+    while (i < pairs1.length && j < pairs2.length) {
+      if (pairs1[i] == pairs2[j]) {
+        intersection++;
+        i++;
+        j++;
+      }
+      else if (pairs1[i] < pairs2[j]) {
+        i++;
+      }
+      else {
+        j++;
+      }
+    }
+
+    return (float) (2.0 * intersection) / union;
+  }
+
+  /*
+   * the same whitespace chars as \s in the regex Similarity uses to split words
+   */
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+}
@@ -0,0 +1,205 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.nodes.Element;
+import org.jsoup.parser.Parser;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The class RelatedAnimePrefetcher - fetches the related anime (sequels, prequels, side stories, ...) of a scraped show into the cache, since
+ * they are most likely the next ones to be scraped.<br>
+ * The prefetches run in a single low priority background thread and only use the request slots no other request is waiting for. How far the
+ * relatedanime graph is followed is limited by depth and by the number of prefetches per scraped show.
+ * 
+ * @author Manuel Laggner
+ */
+class RelatedAnimePrefetcher {
+  private static final Logger  LOGGER   = LoggerFactory.getLogger(RelatedAnimePrefetcher.class);
+
+  private final AniDBCachedUrl cachedUrl;
+  private final String         animeUrl;
+  private final Set<String>    queued   = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+  // prefetches enqueued but not finished yet
+  private final AtomicInteger  pending  = new AtomicInteger();
+  private ExecutorService      executor = null;
+
+  private volatile boolean     enabled  = false;
+  private volatile int         maxDepth = 1;
+  private volatile int         maxCount = 5;
+
+  /**
+   * @param cachedUrl
+   *          the cache to fetch into
+   * @param animeUrl
+   *          the url of the anime request without the aid
+   */
+  RelatedAnimePrefetcher(AniDBCachedUrl cachedUrl, String animeUrl) {
+    this.cachedUrl = cachedUrl;
+    this.animeUrl = animeUrl;
+  }
+
+  void setEnabled(boolean enabled) {
+    this.enabled = enabled;
+  }
+
+  boolean isEnabled() {
+    return enabled;
+  }
+
+  /**
+   * @param maxDepth
+   *          1 = only the anime related to the scraped show, 2 = their related anime too, ...
+   * @param maxCount
+   *          the maximum amount of prefetches per scraped show
+   */
+  void setLimits(int maxDepth, int maxCount) {
+    this.maxDepth = maxDepth;
+    this.maxCount = maxCount;
+  }
+
+  /**
+   * enqueue the related anime of the given (already fetched) anime document
+   * 
+   * @param doc
+   *          the anime document
+   */
+  void prefetchRelated(Document doc) {
+    if (!enabled || maxDepth < 1 || maxCount < 1) {
+      return;
+    }
+    enqueue(doc, 1, new AtomicInteger(maxCount));
+  }
+
+  private void enqueue(Document doc, int depth, AtomicInteger budget) {
+    for (String aid : getRelatedIds(doc)) {
+      // every anime only once per session - it is in the cache afterwards anyway (failed prefetches are removed again)
+      if (!queued.add(aid)) {
+        continue;
+      }
+      if (budget.getAndDecrement() <= 0) {
+        queued.remove(aid);
+        return;
+      }
+      pending.incrementAndGet();
+      getExecutor().execute(new PrefetchTask(aid, depth, budget));
+    }
+  }
+
+  /*
+   * wait until all enqueued prefetches are done; returns false if they are not done within the timeout
+   */
+  boolean awaitIdle(long timeoutMs) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + timeoutMs;
+    while (pending.get() > 0) {
+      if (System.currentTimeMillis() > deadline) {
+        return false;
+      }
+      Thread.sleep(10);
+    }
+    return true;
+  }
+
+  static List<String> getRelatedIds(Document doc) {
+    List<String> ids = new ArrayList<>();
+    for (Element related : doc.getElementsByTag("relatedanime")) {
+      for (Element anime : related.children()) {
+        String aid = anime.attr("id");
+        if ("anime".equalsIgnoreCase(anime.tagName()) && StringUtils.isNumeric(aid)) {
+          ids.add(aid);
+        }
+      }
+    }
+    return ids;
+  }
+
+  private synchronized ExecutorService getExecutor() {
+    if (executor == null) {
+      ThreadPoolExecutor pool = new ThreadPoolExecutor(1, 1, 60, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable r) {
+          Thread thread = new Thread(r, "anidb-prefetch");
+          thread.setDaemon(true);
+          thread.setPriority(Thread.MIN_PRIORITY);
+          return thread;
+        }
+      });
+      pool.allowCoreThreadTimeOut(true);
+      executor = pool;
+    }
+    return executor;
+  }
+
+  /****************************************************************************
+   * prefetch of a single anime
+   ****************************************************************************/
+  private class PrefetchTask implements Runnable {
+    private final String        aid;
+    private final int           depth;
+    private final AtomicInteger budget;
+
+    PrefetchTask(String aid, int depth, AtomicInteger budget) {
+      this.aid = aid;
+      this.depth = depth;
+      this.budget = budget;
+    }
+
+    @Override
+    public void run() {
+      try {
+        if (!enabled) {
+          // may be enabled again later
+          queued.remove(aid);
+          return;
+        }
+        LOGGER.debug("prefetching related anime " + aid);
+        Path file = cachedUrl.prefetch(animeUrl + aid);
+        if (!file.toFile().exists()) {
+          // try again the next time it is related to a scraped show
+          queued.remove(aid);
+          return;
+        }
+        if (depth < maxDepth && budget.get() > 0) {
+          enqueue(Jsoup.parse(AniDBCachedUrl.readFileToString(file), "", Parser.xmlParser()), depth + 1, budget);
+        }
+      }
+      catch (Exception e) {
+        LOGGER.debug("could not prefetch related anime " + aid + ": " + e.getMessage());
+        queued.remove(aid);
+      }
+      finally {
+        pending.decrementAndGet();
+      }
+    }
+  }
+}
@@ -0,0 +1,109 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The class ScrapeEvent - a timed step of the scrape pipeline (cache lookup, rate limit wait, download, parse, search, title index build).<br>
+ * Events are written to the logger <i>org.tinymediamanager.scraper.anidb.trace</i> on level TRACE, so the latency of a single scrape can be
+ * broken down by enabling that logger. If it is disabled, {@link #begin(Type)} hands out a shared no-op instance and nothing is measured.
+ * 
+ * @author Manuel Laggner
+ */
+class ScrapeEvent {
+  private static final Logger      LOGGER   = LoggerFactory.getLogger("org.tinymediamanager.scraper.anidb.trace");
+  private static final ScrapeEvent DISABLED = new ScrapeEvent(null);
+
+  enum Type {
+    CACHE_LOOKUP,
+    RATE_LIMIT_WAIT,
+    DOWNLOAD,
+    PARSE,
+    SEARCH,
+    TITLE_INDEX_BUILD
+  }
+
+  private final Type type;
+  private final long start;
+  private String     aid     = "";
+  private String     urlHash = "";
+  private long       bytes   = -1;
+  private String     outcome = "";
+
+  private ScrapeEvent(Type type) {
+    this.type = type;
+    this.start = type == null ? 0 : System.nanoTime();
+  }
+
+  /**
+   * start measuring a step of the pipeline
+   * 
+   * @param type
+   *          the step
+   * @return the started event (a no-op event if tracing is disabled)
+   */
+  static ScrapeEvent begin(Type type) {
+    if (!LOGGER.isTraceEnabled()) {
+      return DISABLED;
+    }
+    return new ScrapeEvent(type);
+  }
+
+  boolean isEnabled() {
+    return this != DISABLED;
+  }
+
+  ScrapeEvent aid(String aid) {
+    if (isEnabled()) {
+      this.aid = aid;
+    }
+    return this;
+  }
+
+  ScrapeEvent urlHash(String urlHash) {
+    if (isEnabled()) {
+      this.urlHash = urlHash;
+    }
+    return this;
+  }
+
+  ScrapeEvent bytes(long bytes) {
+    if (isEnabled()) {
+      this.bytes = bytes;
+    }
+    return this;
+  }
+
+  ScrapeEvent outcome(String outcome) {
+    if (isEnabled()) {
+      this.outcome = outcome;
+    }
+    return this;
+  }
+
+  /**
+   * stop measuring and write the event
+   */
+  void commit() {
+    if (!isEnabled()) {
+      return;
+    }
+    long durationMicros = (System.nanoTime() - start) / 1000;
+    LOGGER.trace("{} {}us aid={} url={} bytes={} outcome={}", type, durationMicros, aid, urlHash, bytes, outcome);
+  }
+}
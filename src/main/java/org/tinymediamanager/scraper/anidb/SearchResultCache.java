@@ -0,0 +1,102 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.tinymediamanager.scraper.MediaSearchResult;
+import org.tinymediamanager.scraper.entities.MediaType;
+
+/**
+ * The class SearchResultCache - a bounded LRU cache for search results, keyed by the normalized query (see {@link TitleNormalizer}) and the language.
+ * Equivalent queries like "Spice and Wolf" and "spice &amp; wolf " share one entry.
+ * 
+ * @author Manuel Laggner
+ */
+class SearchResultCache {
+  private final String                               providerId;
+  private final Map<String, List<MediaSearchResult>> cache;
+  private long                                       hits   = 0;
+  private long                                       misses = 0;
+
+  SearchResultCache(String providerId, final int maxEntries) {
+    this.providerId = providerId;
+    this.cache = new LinkedHashMap<String, List<MediaSearchResult>>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, List<MediaSearchResult>> eldest) {
+        return size() > maxEntries;
+      }
+    };
+  }
+
+  static String createKey(String normalizedQuery, String language) {
+    return language + "|" + normalizedQuery;
+  }
+
+  /**
+   * get a copy of the cached results, or null if there is no entry for this key
+   */
+  synchronized List<MediaSearchResult> get(String key) {
+    List<MediaSearchResult> results = cache.get(key);
+    if (results == null) {
+      misses++;
+      return null;
+    }
+    hits++;
+    return copy(results);
+  }
+
+  synchronized void put(String key, List<MediaSearchResult> results) {
+    cache.put(key, copy(results));
+  }
+
+  synchronized void clear() {
+    cache.clear();
+  }
+
+  synchronized long getHitCount() {
+    return hits;
+  }
+
+  synchronized long getMissCount() {
+    return misses;
+  }
+
+  synchronized double getHitRate() {
+    long requests = hits + misses;
+    return requests == 0 ? 0 : (double) hits / requests;
+  }
+
+  /*
+   * search results are mutable, so never hand out the cached instances
+   */
+  private List<MediaSearchResult> copy(List<MediaSearchResult> results) {
+    List<MediaSearchResult> copy = new ArrayList<>(results.size());
+    for (MediaSearchResult result : results) {
+      MediaSearchResult clone = new MediaSearchResult(providerId, MediaType.TV_SHOW);
+      clone.setId(result.getId());
+      clone.setTitle(result.getTitle());
+      clone.setScore(result.getScore());
+      copy.add(clone);
+    }
+    return copy;
+  }
+}
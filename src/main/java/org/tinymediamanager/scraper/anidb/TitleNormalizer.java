@@ -0,0 +1,92 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import java.text.Normalizer;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Locale;
+import java.util.Set;
+import java.util.regex.Pattern;
+
+import org.apache.commons.lang3.StringUtils;
+
+/**
+ * The class TitleNormalizer - creates the canonical form of titles and queries, so that "Spice and Wolf", "spice &amp; wolf " and "SPICE
+ * AND WOLF" in full width characters end up with the same key.
+ * 
+ * @author Manuel Laggner
+ */
+final class TitleNormalizer {
+  private static final Pattern     APOSTROPHES = Pattern.compile("['`\\u2018\\u2019]");
+  private static final Pattern     SEPARATORS  = Pattern.compile("[\\p{P}\\p{S}\\s]+");
+  private static final Set<String> NOISE_WORDS = new HashSet<>(Arrays.asList("the", "season"));
+
+  private TitleNormalizer() {
+  }
+
+  /**
+   * normalize the given title: NFKC normalized, lower cased, "&amp;" spelled out, punctuation removed and noise words ("the", "season") dropped.
+   * A title consisting of punctuation and symbols only is just lower cased, so it can still be found
+   * 
+   * @param title
+   *          the title to normalize
+   * @return the normalized title (words separated by a single space) or an empty string for a blank title
+   */
+  static String normalize(String title) {
+    if (StringUtils.isBlank(title)) {
+      return "";
+    }
+
+    String normalized = Normalizer.normalize(title, Normalizer.Form.NFKC).toLowerCase(Locale.ROOT);
+    normalized = normalized.replace("&", " and ");
+    // "Girls' Last Tour" -> "girls last tour"
+    normalized = APOSTROPHES.matcher(normalized).replaceAll("");
+    normalized = SEPARATORS.matcher(normalized).replaceAll(" ").trim();
+    if (normalized.isEmpty()) {
+      return title.trim().toLowerCase(Locale.ROOT);
+    }
+
+    StringBuilder sb = new StringBuilder(normalized.length());
+    for (String word : StringUtils.split(normalized, ' ')) {
+      if (!NOISE_WORDS.contains(word)) {
+        if (sb.length() > 0) {
+          sb.append(' ');
+        }
+        sb.append(word);
+      }
+    }
+
+    // a title consisting of noise words only keeps them
+    return sb.length() > 0 ? sb.toString() : normalized;
+  }
+
+  /**
+   * get the words of a normalized title in sorted order, so titles with the same words in a different order share the key. Repeated words
+   * are kept: "kira kira" must not share the key of "kira"
+   * 
+   * @param normalized
+   *          a title created by {@link #normalize(String)}
+   * @return the sorted words separated by a single space
+   */
+  static String tokenKey(String normalized) {
+    String[] tokens = StringUtils.split(normalized, ' ');
+    Arrays.sort(tokens);
+    String tokenKey = StringUtils.join(tokens, ' ');
+    // share the instance for the index if nothing changed
+    return tokenKey.equals(normalized) ? normalized : tokenKey;
+  }
+}
@@ -0,0 +1,210 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import static org.junit.Assert.assertTrue;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.zip.GZIPOutputStream;
+
+import org.junit.AfterClass;
+import org.junit.Assume;
+import org.junit.BeforeClass;
+import org.junit.ClassRule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.slf4j.LoggerFactory;
+import org.tinymediamanager.scraper.MediaScrapeOptions;
+import org.tinymediamanager.scraper.MediaSearchOptions;
+import org.tinymediamanager.scraper.entities.MediaType;
+
+import ch.qos.logback.classic.Level;
+import ch.qos.logback.classic.Logger;
+
+/**
+ * checks the bytes allocated per operation against the budgets in allocation-budgets.properties; everything runs offline against the fixtures
+ */
+public class AllocationBudgetTest {
+  private static final String                    FIXTURE_AID = "0";
+  private static final int                       WARMUP      = 5;
+  private static final int                       ITERATIONS  = 20;
+  // log messages are not part of the budgets, so these loggers are raised to WARN while measuring
+  private static final String[]                  LOGGERS     = { "org.tinymediamanager", "org.tinymediamanager.scraper.anidb.trace" };
+
+  private static com.sun.management.ThreadMXBean threadMXBean;
+  private static Properties                      budgets;
+  private static Path                            titleDump;
+  private static Path                            cacheDir;
+  private static Map<String, Level>              logLevels   = new HashMap<>();
+
+  @ClassRule
+  public static TemporaryFolder                  folder      = new TemporaryFolder();
+
+  @BeforeClass
+  public static void setUp() throws Exception {
+    threadMXBean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+
+    budgets = new Properties();
+    try (InputStream is = AllocationBudgetTest.class.getResourceAsStream("/allocation-budgets.properties")) {
+      budgets.load(is);
+    }
+
+    // the provider reads the gzipped dump
+    titleDump = folder.newFile("anime-titles.dat.gz").toPath();
+    try (InputStream is = AllocationBudgetTest.class.getResourceAsStream("/fixtures/anime-titles.dat");
+        OutputStream os = new GZIPOutputStream(Files.newOutputStream(titleDump))) {
+      byte[] buffer = new byte[8192];
+      for (int read = is.read(buffer); read > 0; read = is.read(buffer)) {
+        os.write(buffer, 0, read);
+      }
+    }
+
+    // put the anime fixture into a cache of its own
+    cacheDir = folder.newFolder("cache").toPath();
+    Path cache = new AniDBCachedUrl(cacheDir).getCachePath(AniDBMetadataProvider.ANIME_URL + FIXTURE_AID);
+    try (InputStream is = AllocationBudgetTest.class.getResourceAsStream("/fixtures/anime-4242.xml")) {
+      Files.copy(is, cache, StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    for (String name : LOGGERS) {
+      org.slf4j.Logger logger = LoggerFactory.getLogger(name);
+      if (logger instanceof Logger) {
+        logLevels.put(name, ((Logger) logger).getLevel());
+        ((Logger) logger).setLevel(Level.WARN);
+      }
+    }
+  }
+
+  @AfterClass
+  public static void tearDown() throws Exception {
+    for (Map.Entry<String, Level> entry : logLevels.entrySet()) {
+      ((Logger) LoggerFactory.getLogger(entry.getKey())).setLevel(entry.getValue());
+    }
+  }
+
+  @Test
+  public void testSearch() throws Exception {
+    final AniDBMetadataProvider mp = new AniDBMetadataProvider(titleDump, cacheDir);
+    final MediaSearchOptions exact = new MediaSearchOptions(MediaType.TV_SHOW);
+    exact.setQuery("Spider Riders");
+    final MediaSearchOptions fuzzy = new MediaSearchOptions(MediaType.TV_SHOW);
+    fuzzy.setQuery("Spidr Ridrs Sun");
+
+    assertBudget("search.exact", new Operation() {
+      @Override
+      public void run() throws Exception {
+        mp.clearSearchCache();
+        mp.search(exact);
+      }
+    });
+    assertBudget("search.fuzzy", new Operation() {
+      @Override
+      public void run() throws Exception {
+        mp.clearSearchCache();
+        mp.search(fuzzy);
+      }
+    });
+    assertBudget("search.cached", new Operation() {
+      @Override
+      public void run() throws Exception {
+        mp.search(fuzzy);
+      }
+    });
+  }
+
+  @Test
+  public void testReadEpisodes() throws Exception {
+    final AniDBMetadataProvider mp = new AniDBMetadataProvider(titleDump, cacheDir);
+    final MediaScrapeOptions options = new MediaScrapeOptions(MediaType.TV_SHOW);
+    options.setId("anidb", FIXTURE_AID);
+
+    assertBudget("readEpisodes", new Operation() {
+      @Override
+      public void run() throws Exception {
+        try (EpisodeReader reader = mp.getEpisodes(options, -1, -1, -1)) {
+          while (reader.hasNext()) {
+            reader.next();
+          }
+        }
+      }
+    });
+  }
+
+  @Test
+  public void testGetTvShowMetadata() throws Exception {
+    final AniDBMetadataProvider mp = new AniDBMetadataProvider(titleDump, cacheDir);
+    final MediaScrapeOptions options = new MediaScrapeOptions(MediaType.TV_SHOW);
+    options.setId("anidb", FIXTURE_AID);
+
+    assertBudget("getTvShowMetadata", new Operation() {
+      @Override
+      public void run() throws Exception {
+        mp.getMetadata(options);
+      }
+    });
+  }
+
+  /*
+   * the index cannot retain more than has been allocated while building it, so this is the budget of its heap footprint too
+   */
+  @Test
+  public void testBuildTitleHashMap() throws Exception {
+    final AniDBMetadataProvider mp = new AniDBMetadataProvider(titleDump, cacheDir);
+
+    assertBudget("buildTitleHashMap", new Operation() {
+      @Override
+      public void run() throws Exception {
+        mp.buildTitleHashMap();
+      }
+    });
+  }
+
+  private void assertBudget(String name, Operation operation) throws Exception {
+    Assume.assumeTrue(threadMXBean.isThreadAllocatedMemorySupported());
+    threadMXBean.setThreadAllocatedMemoryEnabled(true);
+
+    for (int i = 0; i < WARMUP; i++) {
+      operation.run();
+    }
+
+    long threadId = Thread.currentThread().getId();
+    long start = threadMXBean.getThreadAllocatedBytes(threadId);
+    for (int i = 0; i < ITERATIONS; i++) {
+      operation.run();
+    }
+    long perOperation = (threadMXBean.getThreadAllocatedBytes(threadId) - start) / ITERATIONS;
+
+    long budget = getBudget(name);
+    System.out.println(name + ": " + perOperation + " bytes per operation (budget " + budget + ")");
+    assertTrue(name + " allocates " + perOperation + " bytes per operation, budget is " + budget, perOperation <= budget);
+  }
+
+  private long getBudget(String name) {
+    return Long.parseLong(budgets.getProperty(name).trim());
+  }
+
+  private interface Operation {
+    void run() throws Exception;
+  }
+}
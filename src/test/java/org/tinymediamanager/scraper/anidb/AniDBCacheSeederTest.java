@@ -0,0 +1,200 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Scanner;
+import java.util.zip.GZIPOutputStream;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AniDBCacheSeederTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
+
+  private AniDBCachedUrl cachedUrl;
+
+  @Before
+  public void setUp() throws Exception {
+    cachedUrl = new AniDBCachedUrl(folder.newFolder("cache").toPath());
+  }
+
+  @Test
+  public void testSeedZip() throws Exception {
+    String anime = getAnime("0");
+
+    Path zip = folder.newFile("dump.zip").toPath();
+    try (ZipOutputStream zos = new ZipOutputStream(Files.newOutputStream(zip))) {
+      zos.putNextEntry(new ZipEntry("dump/0.xml"));
+      zos.write(anime.getBytes(StandardCharsets.UTF_8));
+      zos.putNextEntry(new ZipEntry("dump/banned.xml"));
+      zos.write("<error>Banned</error>".getBytes(StandardCharsets.UTF_8));
+      zos.putNextEntry(new ZipEntry("dump/readme.txt"));
+      zos.write("no xml".getBytes(StandardCharsets.UTF_8));
+      // named by its aid only
+      zos.putNextEntry(new ZipEntry("dump/123"));
+      zos.write(getAnime("123").getBytes(StandardCharsets.UTF_8));
+    }
+
+    AniDBCacheSeeder seeder = new AniDBCacheSeeder(cachedUrl, 2);
+    seeder.seed(zip);
+
+    assertEquals(2, seeder.getImportedCount());
+    assertEquals(2, seeder.getInvalidCount());
+    assertEquals(0, seeder.getSkippedCount());
+    assertEquals(anime, AniDBCachedUrl.readFileToString(getCachePath("0")));
+    assertTrue(Files.exists(getCachePath("123")));
+  }
+
+  @Test
+  public void testSeedTarGz() throws Exception {
+    String anime = getAnime("0");
+    String paxAnime = getAnime("999999999");
+    // longer than the 100 bytes of the name field
+    String longName = "dump/" + StringUtils.repeat("long-directory-name/", 8) + "0.xml";
+    String paxName = "dump/" + StringUtils.repeat("pax-directory-name/", 8) + "999999999.xml";
+
+    Path tar = folder.newFile("dump.tar.gz").toPath();
+    try (OutputStream os = new GZIPOutputStream(Files.newOutputStream(tar))) {
+      writeTarEntry(os, "dump/", '5', new byte[0]);
+      // GNU long name, followed by the entry with the truncated name
+      writeTarEntry(os, "././@LongLink", 'L', (longName + "\0").getBytes(StandardCharsets.UTF_8));
+      writeTarEntry(os, longName.substring(0, 100), '0', anime.getBytes(StandardCharsets.UTF_8));
+      // 513 bytes: the content and its padding span two blocks
+      writeTarEntry(os, "dump/readme.txt", '0', StringUtils.repeat('x', 513).getBytes(StandardCharsets.UTF_8));
+      writeTarEntry(os, "dump/banned.xml", '0', "<error>Banned</error>".getBytes(StandardCharsets.UTF_8));
+      // pax extended header with the name of the next entry; the entry is imported by its content either way
+      writeTarEntry(os, "dump/PaxHeaders/999999999", 'x', createPaxRecord("path", paxName));
+      writeTarEntry(os, "dump/999999999", '0', paxAnime.getBytes(StandardCharsets.UTF_8));
+      // exactly one block, no padding
+      writeTarEntry(os, "dump/block.txt", '0', StringUtils.repeat('x', 512).getBytes(StandardCharsets.UTF_8));
+      // symbolic link
+      writeTarEntry(os, "dump/latest.xml", '2', new byte[0]);
+      // end of archive
+      os.write(new byte[1024]);
+    }
+
+    AniDBCacheSeeder seeder = new AniDBCacheSeeder(cachedUrl, 2);
+    seeder.seed(tar);
+
+    assertEquals(2, seeder.getImportedCount());
+    // banned.xml, readme.txt and block.txt
+    assertEquals(3, seeder.getInvalidCount());
+    assertEquals(1, seeder.getSkippedCount());
+    assertEquals(anime, AniDBCachedUrl.readFileToString(getCachePath("0")));
+    assertEquals(paxAnime, AniDBCachedUrl.readFileToString(getCachePath("999999999")));
+  }
+
+  @Test
+  public void testSeedDirectory() throws Exception {
+    Path dir = folder.newFolder("dump").toPath();
+    Path subDir = Files.createDirectory(dir.resolve("anime"));
+    Files.write(subDir.resolve("0.xml"), getAnime("0").getBytes(StandardCharsets.UTF_8));
+    Files.write(subDir.resolve("banned.xml"), "<error>Banned</error>".getBytes(StandardCharsets.UTF_8));
+    Files.write(dir.resolve("readme.txt"), "no xml".getBytes(StandardCharsets.UTF_8));
+    // the cache file of another install
+    Path otherCache = new AniDBCachedUrl(folder.newFolder("other-cache").toPath()).getCachePath(AniDBMetadataProvider.ANIME_URL + "5");
+    Files.write(dir.resolve(otherCache.getFileName()), getAnime("5").getBytes(StandardCharsets.UTF_8));
+
+    AniDBCacheSeeder seeder = new AniDBCacheSeeder(cachedUrl, 2);
+    seeder.seed(dir);
+
+    assertEquals(2, seeder.getImportedCount());
+    assertEquals(2, seeder.getInvalidCount());
+    assertTrue(Files.exists(getCachePath("0")));
+    assertTrue(Files.exists(getCachePath("5")));
+
+    // already cached anime are kept
+    seeder = new AniDBCacheSeeder(cachedUrl, 2);
+    seeder.seed(dir);
+    assertEquals(0, seeder.getImportedCount());
+    assertEquals(2, seeder.getExistingCount());
+  }
+
+  private Path getCachePath(String aid) {
+    return cachedUrl.getCachePath(AniDBMetadataProvider.ANIME_URL + aid);
+  }
+
+  /*
+   * the anime fixture with another aid
+   */
+  private String getAnime(String aid) throws IOException {
+    try (InputStream is = getClass().getResourceAsStream("/fixtures/anime-4242.xml"); Scanner scanner = new Scanner(is, "UTF-8")) {
+      return scanner.useDelimiter("\\A").next().replace("<anime id=\"4242\"", "<anime id=\"" + aid + "\"");
+    }
+  }
+
+  /*
+   * write a ustar header, the content and the padding up to the next block
+   */
+  private static void writeTarEntry(OutputStream os, String name, char type, byte[] content) throws IOException {
+    byte[] header = new byte[512];
+    byte[] nameBytes = name.getBytes(StandardCharsets.UTF_8);
+    System.arraycopy(nameBytes, 0, header, 0, Math.min(nameBytes.length, 100));
+    writeOctal(header, 100, 8, 0644);
+    writeOctal(header, 108, 8, 0);
+    writeOctal(header, 116, 8, 0);
+    writeOctal(header, 124, 12, content.length);
+    writeOctal(header, 136, 12, 0);
+    header[156] = (byte) type;
+    System.arraycopy("ustar\u000000".getBytes(StandardCharsets.US_ASCII), 0, header, 257, 8);
+
+    // the checksum is calculated with spaces in the checksum field
+    Arrays.fill(header, 148, 156, (byte) ' ');
+    long checksum = 0;
+    for (byte b : header) {
+      checksum += b & 0xff;
+    }
+    writeOctal(header, 148, 7, checksum);
+
+    os.write(header);
+    os.write(content);
+    os.write(new byte[(512 - content.length % 512) % 512]);
+  }
+
+  private static void writeOctal(byte[] header, int offset, int length, long value) {
+    byte[] octal = String.format("%0" + (length - 1) + "o", value).getBytes(StandardCharsets.US_ASCII);
+    System.arraycopy(octal, 0, header, offset, octal.length);
+    header[offset + length - 1] = 0;
+  }
+
+  /*
+   * a pax record "<length> <key>=<value>\n"; the length is the amount of bytes of the whole record including the length itself
+   */
+  private static byte[] createPaxRecord(String key, String value) {
+    String record = " " + key + "=" + value + "\n";
+    int recordLength = record.getBytes(StandardCharsets.UTF_8).length;
+    int length = recordLength + String.valueOf(recordLength).length();
+    // the digits of the length may add another digit
+    length = recordLength + String.valueOf(length).length();
+    return (length + record).getBytes(StandardCharsets.UTF_8);
+  }
+}
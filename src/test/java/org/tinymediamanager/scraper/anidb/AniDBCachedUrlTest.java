@@ -0,0 +1,288 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.lang3.StringUtils;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class AniDBCachedUrlTest {
+  private static final String URL     = "http://localhost/anidb-cache-test";
+  // written in chunks by the stubbed download, so a partial file would be noticed
+  private static final String CONTENT = StringUtils.repeat("<anime id=\"0\"/>\n", 1000);
+
+  @Rule
+  public TemporaryFolder      folder  = new TemporaryFolder();
+
+  private Path                cacheDir;
+  private FakeDownloads       cachedUrl;
+  private ExecutorService     executor;
+
+  @Before
+  public void setUp() throws Exception {
+    cacheDir = folder.newFolder("cache").toPath();
+    cachedUrl = new FakeDownloads(cacheDir);
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() throws Exception {
+    executor.shutdownNow();
+  }
+
+  @Test
+  public void testFailedDownload() throws Exception {
+    cachedUrl.failing = true;
+    try {
+      cachedUrl.getCachedFile(URL);
+      fail();
+    }
+    catch (IOException expected) {
+    }
+
+    Path cache = cachedUrl.getCachePath(URL);
+    // neither a cache file nor a leftover of the download; only the shared lock files
+    assertFalse(Files.exists(cache));
+    List<String> files = new ArrayList<>();
+    try (DirectoryStream<Path> stream = Files.newDirectoryStream(cacheDir)) {
+      for (Path file : stream) {
+        files.add(file.getFileName().toString());
+      }
+    }
+    Collections.sort(files);
+    assertEquals(2, files.size());
+    assertTrue(files.get(0).matches("anidb\\.fetch\\.[0-9a-f]\\.lock"));
+    assertEquals("anidb.lastrequest.lock", files.get(1));
+
+    // the next request tries again
+    cachedUrl.failing = false;
+    assertEquals(CONTENT, AniDBCachedUrl.readFileToString(cachedUrl.getCachedFile(URL)));
+    assertEquals(2, cachedUrl.downloads.get());
+  }
+
+  @Test
+  public void testStoreKeepsCachedFile() throws Exception {
+    Path cache = cachedUrl.getCachePath(URL);
+
+    assertTrue(cachedUrl.store(URL, "first".getBytes(StandardCharsets.UTF_8)));
+    assertFalse(cachedUrl.store(URL, "second".getBytes(StandardCharsets.UTF_8)));
+    assertEquals("first", AniDBCachedUrl.readFileToString(cache));
+
+    // the stored file is used without a download
+    assertEquals(cache, cachedUrl.getCachedFile(URL));
+    assertEquals("first", AniDBCachedUrl.readFileToString(cache));
+    assertEquals(0, cachedUrl.downloads.get());
+  }
+
+  @Test
+  public void testEmptyCacheFileIsMissing() throws Exception {
+    Path cache = cachedUrl.getCachePath(URL);
+    Files.write(cache, new byte[0]);
+
+    assertEquals(CONTENT, AniDBCachedUrl.readFileToString(cachedUrl.getCachedFile(URL)));
+    assertEquals(1, cachedUrl.downloads.get());
+
+    Files.write(cache, new byte[0]);
+    assertTrue(cachedUrl.store(URL, "stored".getBytes(StandardCharsets.UTF_8)));
+    assertEquals("stored", AniDBCachedUrl.readFileToString(cache));
+  }
+
+  @Test
+  public void testConcurrentRequestsFetchOnce() throws Exception {
+    final Path cache = cachedUrl.getCachePath(URL);
+    final AtomicBoolean done = new AtomicBoolean();
+
+    // readers of the cache file itself must never see a partial file
+    Future<List<String>> partialReads = executor.submit(new Callable<List<String>>() {
+      @Override
+      public List<String> call() throws Exception {
+        List<String> partial = new ArrayList<>();
+        while (!done.get()) {
+          String content = readIfExists(cache);
+          if (content != null && !CONTENT.equals(content)) {
+            partial.add(content);
+          }
+        }
+        return partial;
+      }
+    });
+
+    List<Future<String>> requests = new ArrayList<>();
+    for (int i = 0; i < 8; i++) {
+      requests.add(executor.submit(new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          return AniDBCachedUrl.readFileToString(cachedUrl.getCachedFile(URL));
+        }
+      }));
+    }
+    for (Future<String> request : requests) {
+      assertEquals(CONTENT, request.get());
+    }
+    done.set(true);
+
+    assertEquals(1, cachedUrl.downloads.get());
+    assertEquals(0, partialReads.get().size());
+  }
+
+  @Test
+  public void testConcurrentStoreAndRequests() throws Exception {
+    final Path cache = cachedUrl.getCachePath(URL);
+    final AtomicBoolean done = new AtomicBoolean();
+
+    Future<List<String>> partialReads = executor.submit(new Callable<List<String>>() {
+      @Override
+      public List<String> call() throws Exception {
+        List<String> partial = new ArrayList<>();
+        while (!done.get()) {
+          String content = readIfExists(cache);
+          if (content != null && !CONTENT.equals(content)) {
+            partial.add(content);
+          }
+        }
+        return partial;
+      }
+    });
+
+    List<Future<String>> requests = new ArrayList<>();
+    for (int i = 0; i < 4; i++) {
+      requests.add(executor.submit(new Callable<String>() {
+        @Override
+        public String call() throws Exception {
+          return AniDBCachedUrl.readFileToString(cachedUrl.getCachedFile(URL));
+        }
+      }));
+    }
+    Future<Boolean> stored = executor.submit(new Callable<Boolean>() {
+      @Override
+      public Boolean call() throws Exception {
+        return cachedUrl.store(URL, CONTENT.getBytes(StandardCharsets.UTF_8));
+      }
+    });
+
+    for (Future<String> request : requests) {
+      assertEquals(CONTENT, request.get());
+    }
+    done.set(true);
+
+    // either the seed or a single download
+    assertEquals(1, (stored.get() ? 1 : 0) + cachedUrl.downloads.get());
+    assertEquals(0, partialReads.get().size());
+  }
+
+  @Test
+  public void testLastRequestTimeRoundTrip() throws Exception {
+    Path rateLimitFile = cacheDir.resolve("anidb.lastrequest.lock");
+
+    try (FileChannel channel = FileChannel.open(rateLimitFile, CREATE, READ, WRITE)) {
+      // nothing recorded yet
+      assertEquals(0L, cachedUrl.readLastRequestEndedTime(channel));
+    }
+
+    long written;
+    try (FileChannel channel = FileChannel.open(rateLimitFile, CREATE, READ, WRITE)) {
+      written = cachedUrl.writeLastRequestEndedTime(channel);
+    }
+
+    // as read by another instance sharing the cache folder
+    try (FileChannel channel = FileChannel.open(rateLimitFile, READ)) {
+      assertEquals(written, new AniDBCachedUrl(cacheDir).readLastRequestEndedTime(channel));
+    }
+  }
+
+  @Test
+  public void testDownloadWaitsForRequestOfOtherProcess() throws Exception {
+    // another process just finished a request
+    try (FileChannel channel = FileChannel.open(cacheDir.resolve("anidb.lastrequest.lock"), CREATE, WRITE)) {
+      ByteBuffer buffer = ByteBuffer.allocate(8);
+      buffer.putLong(System.currentTimeMillis());
+      buffer.flip();
+      channel.write(buffer, 0);
+    }
+
+    long start = System.currentTimeMillis();
+    cachedUrl.getCachedFile(URL);
+    assertTrue(System.currentTimeMillis() - start >= 1500);
+  }
+
+  private static String readIfExists(Path file) throws IOException {
+    try {
+      return AniDBCachedUrl.readFileToString(file);
+    }
+    catch (NoSuchFileException e) {
+      return null;
+    }
+  }
+
+  /****************************************************************************
+   * cache with a stubbed download, which writes the content slowly in chunks
+   ****************************************************************************/
+  private static class FakeDownloads extends AniDBCachedUrl {
+    final AtomicInteger downloads = new AtomicInteger();
+    volatile boolean    failing   = false;
+
+    FakeDownloads(Path cacheDir) {
+      super(cacheDir);
+    }
+
+    @Override
+    boolean downloadTo(String url, Path file) throws Exception {
+      downloads.incrementAndGet();
+      byte[] content = CONTENT.getBytes(StandardCharsets.UTF_8);
+      try (OutputStream os = Files.newOutputStream(file)) {
+        for (int offset = 0; offset < content.length; offset += 4096) {
+          os.write(content, offset, Math.min(4096, content.length - offset));
+          os.flush();
+          if (failing) {
+            throw new IOException("connection reset");
+          }
+          Thread.sleep(20);
+        }
+      }
+      return true;
+    }
+  }
+}
@@ -17,22 +17,39 @@ package org.tinymediamanager.scraper.anidb;
 
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
 import static org.junit.Assert.fail;
 
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.Locale;
+import java.util.Scanner;
+import java.util.zip.GZIPOutputStream;
 
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.tinymediamanager.scraper.MediaMetadata;
 import org.tinymediamanager.scraper.MediaScrapeOptions;
 import org.tinymediamanager.scraper.MediaSearchOptions;
 import org.tinymediamanager.scraper.MediaSearchResult;
 import org.tinymediamanager.scraper.entities.MediaArtwork.MediaArtworkType;
 import org.tinymediamanager.scraper.entities.MediaCastMember;
+import org.tinymediamanager.scraper.entities.MediaEpisode;
 import org.tinymediamanager.scraper.entities.MediaType;
 import org.tinymediamanager.scraper.mediaprovider.ITvShowMetadataProvider;
 
 public class AniDBMetadataProviderTest {
+  @Rule
+  public TemporaryFolder folder = new TemporaryFolder();
 
   @Test
   public void testSearch() {
@@ -56,6 +73,168 @@ public class AniDBMetadataProviderTest {
     }
   }
 
+  @Test
+  public void testSearchCache() {
+    AniDBMetadataProvider mp = new AniDBMetadataProvider();
+
+    MediaSearchOptions options = new MediaSearchOptions(MediaType.TV_SHOW);
+    options.setQuery("Spice and Wolf");
+    try {
+      List<MediaSearchResult> results = mp.search(options);
+      assertEquals(0, mp.getSearchCacheHitCount());
+      assertEquals(1, mp.getSearchCacheMissCount());
+
+      // equivalent query must be answered from the cache
+      options.setQuery(" spice & wolf ");
+      List<MediaSearchResult> cachedResults = mp.search(options);
+      assertEquals(1, mp.getSearchCacheHitCount());
+      assertEquals(1, mp.getSearchCacheMissCount());
+      assertEquals(0.5d, mp.getSearchCacheHitRate(), 0.0001);
+
+      assertEquals(results.size(), cachedResults.size());
+      for (int i = 0; i < results.size(); i++) {
+        assertEquals(results.get(i).getId(), cachedResults.get(i).getId());
+        assertEquals(results.get(i).getScore(), cachedResults.get(i).getScore(), 0.0001);
+      }
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+      fail();
+    }
+  }
+
+  @Test
+  public void testSearchWithTimeBudget() {
+    AniDBMetadataProvider mp = new AniDBMetadataProvider();
+
+    MediaSearchOptions options = new MediaSearchOptions(MediaType.TV_SHOW);
+    options.setQuery("Spice and");
+    try {
+      final List<MediaSearchResult> found = new ArrayList<>();
+      ISearchResultListener listener = new ISearchResultListener() {
+        @Override
+        public void resultFound(MediaSearchResult result) {
+          found.add(result);
+        }
+      };
+
+      // the first search may not get the index in time, but must not block
+      long start = System.currentTimeMillis();
+      mp.search(options, 50, 5, listener);
+      assertThat((int) (System.currentTimeMillis() - start)).isLessThanOrEqualTo(1000);
+
+      // index is ready for sure after a regular search
+      mp.search(options);
+      found.clear();
+      options.setQuery("Spider Ri");
+      List<MediaSearchResult> results = mp.search(options, 200, 5, listener);
+      assertThat(results.size()).isLessThanOrEqualTo(5);
+      assertThat(results.size()).isGreaterThan(0);
+      assertThat(found.size()).isGreaterThanOrEqualTo(results.size());
+      for (int i = 1; i < results.size(); i++) {
+        assertThat(Float.compare(results.get(i - 1).getScore(), results.get(i).getScore())).isGreaterThanOrEqualTo(0);
+      }
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+      fail();
+    }
+  }
+
+  @Test
+  public void testSearchWithTimeBudgetRanking() throws Exception {
+    Path titleDump = folder.newFile("anime-titles.dat.gz").toPath();
+    writeTitleDump(titleDump, //
+        // starts with the query, but the synonym (scored after all primary titles) is the better hit
+        "1|1|x-jat|Spider Riders Yomigaeru Taiyou", //
+        "1|2|en|Spidr Ri", //
+        "2|1|x-jat|Spider Rin", //
+        // starts with the query, but scores below the threshold
+        "3|1|x-jat|Spider Rising Moon of the Long Night Shinsengumi Chronicle", //
+        "4|1|x-jat|Spyder Ri", //
+        "5|1|x-jat|Spider Ring", //
+        "6|1|x-jat|Spider Rider Z", //
+        "7|1|x-jat|Tokyo Ghoul");
+
+    AniDBMetadataProvider mp = new AniDBMetadataProvider(titleDump);
+    MediaSearchOptions options = new MediaSearchOptions(MediaType.TV_SHOW);
+
+    // wait for the title index
+    options.setQuery("Tokyo Ghoul");
+    mp.search(options);
+
+    options.setQuery("Spider Ri");
+    final List<MediaSearchResult> found = new ArrayList<>();
+    ISearchResultListener listener = new ISearchResultListener() {
+      @Override
+      public void resultFound(MediaSearchResult result) {
+        found.add(result);
+      }
+    };
+    List<MediaSearchResult> results = mp.search(options, 10000, 10, listener);
+    assertEquals(Arrays.asList("2", "5", "6", "1", "4"), getIds(results));
+    assertEquals(0.7272f, results.get(3).getScore(), 0.0001f);
+    assertTrue(found.containsAll(results));
+
+    // anime 1 is pushed out by anime 4 and has to come back with its better title
+    results = mp.search(options, 10000, 4, null);
+    assertEquals(Arrays.asList("2", "5", "6", "1"), getIds(results));
+    assertEquals(0.7272f, results.get(3).getScore(), 0.0001f);
+  }
+
+  @Test
+  public void testSearchCacheWithoutTitleDump() throws Exception {
+    // the title dump cannot be loaded, so the index stays empty
+    Path titleDump = folder.getRoot().toPath().resolve("anime-titles.dat.gz");
+    AniDBMetadataProvider mp = new AniDBMetadataProvider(titleDump);
+    MediaSearchOptions options = new MediaSearchOptions(MediaType.TV_SHOW);
+    options.setQuery("Spider Riders");
+    assertEquals(0, mp.search(options).size());
+
+    // once the dump is there, the next search must build the index rather than answer from the cache
+    writeTitleDump(titleDump, "1|1|x-jat|Spider Riders");
+    assertEquals(Arrays.asList("1"), getIds(mp.search(options, 10000, 5, null)));
+    assertEquals(Arrays.asList("1"), getIds(mp.search(options)));
+  }
+
+  @Test
+  public void testSearchDoubledWords() throws Exception {
+    Path titleDump = folder.newFile("anime-titles.dat.gz").toPath();
+    writeTitleDump(titleDump, //
+        "1|1|x-jat|Kira Kira", //
+        "2|1|x-jat|Kirara");
+
+    AniDBMetadataProvider mp = new AniDBMetadataProvider(titleDump);
+    MediaSearchOptions options = new MediaSearchOptions(MediaType.TV_SHOW);
+    options.setQuery("Kira");
+
+    // the same word, but not the same title: no exact match, so both are found by their score
+    List<MediaSearchResult> results = mp.search(options);
+    assertEquals(Arrays.asList("2", "1"), getIds(results));
+    assertEquals(0.6666f, results.get(1).getScore(), 0.0001f);
+
+    results = mp.search(options, 10000, 5, null);
+    assertEquals(Arrays.asList("2", "1"), getIds(results));
+    assertEquals(0.6666f, results.get(1).getScore(), 0.0001f);
+  }
+
+  private static void writeTitleDump(Path titleDump, String... lines) throws Exception {
+    try (Writer writer = new OutputStreamWriter(new GZIPOutputStream(Files.newOutputStream(titleDump)), StandardCharsets.UTF_8)) {
+      writer.write("# <aid>|<type>|<language>|<title>\n");
+      for (String line : lines) {
+        writer.write(line + "\n");
+      }
+    }
+  }
+
+  private static List<String> getIds(List<MediaSearchResult> results) {
+    List<String> ids = new ArrayList<>();
+    for (MediaSearchResult result : results) {
+      ids.add(result.getId());
+    }
+    return ids;
+  }
+
   @Test
   public void testScrapeTvShow() {
     ITvShowMetadataProvider mp = new AniDBMetadataProvider();
@@ -94,6 +273,92 @@ public class AniDBMetadataProviderTest {
     }
   }
 
+  @Test
+  public void testScrapeTvShowFromFixture() throws Exception {
+    Path cacheDir = cacheFixture(readFixture());
+    ITvShowMetadataProvider mp = new AniDBMetadataProvider(null, cacheDir);
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd");
+
+    MediaScrapeOptions options = new MediaScrapeOptions(MediaType.TV_SHOW);
+    options.setId("anidb", "0");
+    MediaMetadata md = mp.getMetadata(options);
+
+    assertEquals("2006-03-25", sdf.format(md.getReleaseDate()));
+    assertEquals(2006, md.getYear());
+    assertTrue(md.getTitle().startsWith("Spider Riders"));
+    assertTrue(md.getPlot().startsWith("In this Earth, there exists unknown underground world, the Inner World."));
+    assertEquals(5.66d, md.getRating(), 0.001);
+    assertEquals(56, md.getVoteCount());
+    assertEquals("http://img7.anidb.net/pics/anime/11059.jpg", md.getMediaArt(MediaArtworkType.POSTER).get(0).getDefaultUrl());
+    assertEquals("Anime", md.getGenres().get(0).toString());
+
+    assertEquals(2, md.getCastMembers().size());
+    MediaCastMember member = md.getCastMembers().get(0);
+    assertEquals("Hunter Steele", member.getCharacter());
+    assertEquals("Kumai Motoko", member.getName());
+    assertEquals("http://img7.anidb.net/pics/anime/38865.jpg", member.getImageUrl());
+  }
+
+  @Test
+  public void testGetEpisodesFromFixture() throws Exception {
+    Path cacheDir = cacheFixture(readFixture());
+    AniDBMetadataProvider mp = new AniDBMetadataProvider(null, cacheDir);
+    MediaScrapeOptions options = new MediaScrapeOptions(MediaType.TV_SHOW);
+    options.setId("anidb", "0");
+
+    List<MediaEpisode> episodes = new ArrayList<>();
+    try (EpisodeReader reader = mp.getEpisodes(options, 1, 3, 5)) {
+      while (reader.hasNext()) {
+        episodes.add(reader.next());
+      }
+    }
+    assertEquals(3, episodes.size());
+    assertEquals("Episode 3", episodes.get(0).title);
+    assertEquals("Episode 5", episodes.get(2).title);
+
+    // all episodes, in the scrape language
+    options.setLanguage(Locale.JAPANESE);
+    episodes = mp.getEpisodeList(options);
+    assertEquals(28, episodes.size());
+    assertEquals("エピソード 1", episodes.get(0).title);
+    assertEquals("Special 2", episodes.get(27).title);
+  }
+
+  @Test
+  public void testScrapeEpisodeFromFixture() throws Exception {
+    // everything behind episode 3 is broken - the scrape must stop reading at the requested episode
+    String anime = readFixture();
+    anime = anime.substring(0, anime.indexOf("<episode id=\"50004\"")) + "<episode><broken";
+    Path cacheDir = cacheFixture(anime);
+    ITvShowMetadataProvider mp = new AniDBMetadataProvider(null, cacheDir);
+    MediaScrapeOptions options = new MediaScrapeOptions(MediaType.TV_EPISODE);
+    options.setId("anidb", "0");
+    options.setId(MediaMetadata.SEASON_NR, "1");
+    options.setId(MediaMetadata.EPISODE_NR, "3");
+
+    MediaMetadata md = mp.getMetadata(options);
+    assertEquals("Episode 3", md.getTitle());
+    assertEquals(1, md.getSeasonNumber());
+    assertEquals(3, md.getEpisodeNumber());
+    assertEquals(50003, md.getId("anidb"));
+  }
+
+  private static String readFixture() throws Exception {
+    try (InputStream is = AniDBMetadataProviderTest.class.getResourceAsStream("/fixtures/anime-4242.xml");
+        Scanner scanner = new Scanner(is, "UTF-8")) {
+      return scanner.useDelimiter("\\A").next();
+    }
+  }
+
+  /*
+   * put the anime XML as aid 0 into a cache folder of its own, so the scrape runs offline; returns the cache folder
+   */
+  private Path cacheFixture(String anime) throws Exception {
+    Path cacheDir = folder.newFolder("cache").toPath();
+    Files.write(new AniDBCachedUrl(cacheDir).getCachePath(AniDBMetadataProvider.ANIME_URL + "0"), anime.getBytes(StandardCharsets.UTF_8));
+    return cacheDir;
+  }
+
   @Test
   public void testScrapeEpisode() {
     ITvShowMetadataProvider mp = new AniDBMetadataProvider();
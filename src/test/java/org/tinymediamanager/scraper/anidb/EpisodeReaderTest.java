@@ -0,0 +1,160 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+import org.tinymediamanager.scraper.entities.MediaEpisode;
+
+public class EpisodeReaderTest {
+
+  @Test
+  public void testReadAll() throws Exception {
+    try (EpisodeReader reader = fixture("en", -1, -1, -1)) {
+      List<MediaEpisode> episodes = readAll(reader);
+      // 26 regular episodes and 2 specials
+      assertEquals(28, episodes.size());
+
+      MediaEpisode episode = episodes.get(0);
+      assertEquals("Episode 1", episode.title);
+      assertEquals(1, episode.season);
+      assertEquals(1, episode.episode);
+      assertEquals("2006-03-08", episode.firstAired);
+      assertEquals(5.01f, episode.rating, 0.001);
+      assertEquals("Hunter continues his journey through the Inner World (part 1).", episode.plot);
+      assertEquals(50001, episode.ids.get("anidb"));
+
+      assertEquals("Special 1", episodes.get(26).title);
+    }
+  }
+
+  @Test
+  public void testSeasonFilter() throws Exception {
+    try (EpisodeReader reader = fixture("en", 1, -1, -1)) {
+      List<MediaEpisode> episodes = readAll(reader);
+      assertEquals(26, episodes.size());
+      for (MediaEpisode episode : episodes) {
+        assertEquals(1, episode.season);
+      }
+    }
+
+    String xml = "<anime><episodes>" //
+        + episode(1, "1", "1", "<title xml:lang=\"en\">Episode 1</title>") //
+        + episode(2, "2", "1", "<title xml:lang=\"en\">Special 1</title>") //
+        + episode(3, "1", "2", "<title xml:lang=\"en\">Episode 2</title>") //
+        + "</episodes></anime>";
+    try (EpisodeReader reader = reader(xml, "en", 0, -1, -1)) {
+      List<MediaEpisode> episodes = readAll(reader);
+      assertEquals(1, episodes.size());
+      assertEquals("Special 1", episodes.get(0).title);
+      assertEquals(0, episodes.get(0).season);
+    }
+  }
+
+  @Test
+  public void testEpisodeRange() throws Exception {
+    try (EpisodeReader reader = fixture("en", 1, 3, 5)) {
+      List<MediaEpisode> episodes = readAll(reader);
+      assertEquals(3, episodes.size());
+      assertEquals(3, episodes.get(0).episode);
+      assertEquals(5, episodes.get(2).episode);
+    }
+
+    // open ends
+    try (EpisodeReader reader = fixture("en", 1, 25, -1)) {
+      assertEquals(2, readAll(reader).size());
+    }
+    try (EpisodeReader reader = fixture("en", 1, -1, 2)) {
+      assertEquals(2, readAll(reader).size());
+    }
+  }
+
+  @Test
+  public void testTitleLanguage() throws Exception {
+    try (EpisodeReader reader = fixture("ja", 1, 1, 1)) {
+      assertEquals("エピソード 1", reader.next().title);
+    }
+
+    // en first, x-jat if there is no en title
+    String xml = "<anime><episodes>" //
+        + episode(1, "1", "1", "<title xml:lang=\"x-jat\">Dai 1 Wa</title><title xml:lang=\"en\">Episode 1</title>") //
+        + episode(2, "1", "2", "<title xml:lang=\"x-jat\">Dai 2 Wa</title>") //
+        + episode(3, "1", "3", "<title xml:lang=\"fr\">Episode 3</title>") //
+        + "</episodes></anime>";
+    try (EpisodeReader reader = reader(xml, "de", -1, -1, -1)) {
+      List<MediaEpisode> episodes = readAll(reader);
+      assertEquals("Episode 1", episodes.get(0).title);
+      assertEquals("Dai 2 Wa", episodes.get(1).title);
+      assertEquals(null, episodes.get(2).title);
+    }
+  }
+
+  @Test
+  public void testMalformedXml() throws Exception {
+    String xml = "<anime><episodes>" + episode(1, "1", "1", "<title xml:lang=\"en\">Episode 1</title>") + "<episode><broken";
+    try (EpisodeReader reader = reader(xml, "en", -1, -1, -1)) {
+      assertTrue(reader.hasNext());
+      reader.next();
+      try {
+        reader.hasNext();
+        fail();
+      }
+      catch (IllegalStateException expected) {
+      }
+      // the reader is closed afterwards
+      assertFalse(reader.hasNext());
+    }
+  }
+
+  @Test
+  public void testEmpty() throws Exception {
+    try (EpisodeReader reader = EpisodeReader.empty("anidb")) {
+      assertFalse(reader.hasNext());
+    }
+  }
+
+  private EpisodeReader fixture(String language, int season, int firstEpisode, int lastEpisode) throws Exception {
+    InputStream is = getClass().getResourceAsStream("/fixtures/anime-4242.xml");
+    return new EpisodeReader("anidb", is, language, season, firstEpisode, lastEpisode);
+  }
+
+  private static EpisodeReader reader(String xml, String language, int season, int firstEpisode, int lastEpisode) throws Exception {
+    return new EpisodeReader("anidb", new ByteArrayInputStream(xml.getBytes(StandardCharsets.UTF_8)), language, season, firstEpisode,
+        lastEpisode);
+  }
+
+  private static String episode(int id, String type, String epno, String titles) {
+    return "<episode id=\"" + id + "\"><epno type=\"" + type + "\">" + epno + "</epno>" + titles + "</episode>";
+  }
+
+  private static List<MediaEpisode> readAll(EpisodeReader reader) {
+    List<MediaEpisode> episodes = new ArrayList<>();
+    while (reader.hasNext()) {
+      episodes.add(reader.next());
+    }
+    return episodes;
+  }
+}
@@ -0,0 +1,123 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.tinymediamanager.scraper.util.Similarity;
+
+/**
+ * micro benchmark of the search loop: {@link Similarity#compareStrings(String, String)} against {@link LetterPairScorer} over all titles of a
+ * title dump. Not a test - run it by hand with the main method, optionally with the path of a (gzipped) anime-titles.dat; the fixture dump is
+ * used otherwise.<br>
+ * Both scorers are warmed up before measuring, and they take turns in going first, so neither of them is measured with a cold JIT.
+ */
+public class LetterPairScorerBenchmark {
+  private static final String[] QUERIES = { "spider riders", "spice and wolf", "shingeki no kyojin", "fullmetal alchemist brotherhood" };
+  private static final int      WARMUP  = 20;
+  private static final int      ROUNDS  = 30;
+
+  // the scores are summed up, so the JIT cannot drop the scoring
+  private static float          sink;
+
+  public static void main(String[] args) throws Exception {
+    List<String> titles = readTitles(args.length > 0 ? new GZIPInputStream(new FileInputStream(args[0]))
+        : LetterPairScorerBenchmark.class.getResourceAsStream("/fixtures/anime-titles.dat"));
+
+    // like the title index: the titles are normalized and their letter pairs are created once
+    List<String> normalizedTitles = new ArrayList<>(titles.size());
+    List<int[]> titlePairs = new ArrayList<>(titles.size());
+    for (String title : titles) {
+      String normalized = TitleNormalizer.normalize(title);
+      normalizedTitles.add(normalized);
+      titlePairs.add(LetterPairScorer.letterPairs(normalized));
+    }
+
+    for (int i = 0; i < WARMUP; i++) {
+      runSimilarity(normalizedTitles);
+      runScorer(titlePairs);
+    }
+
+    long[] similarityTimes = new long[ROUNDS];
+    long[] scorerTimes = new long[ROUNDS];
+    for (int i = 0; i < ROUNDS; i++) {
+      if (i % 2 == 0) {
+        similarityTimes[i] = runSimilarity(normalizedTitles);
+        scorerTimes[i] = runScorer(titlePairs);
+      }
+      else {
+        scorerTimes[i] = runScorer(titlePairs);
+        similarityTimes[i] = runSimilarity(normalizedTitles);
+      }
+    }
+
+    long comparisons = (long) titles.size() * QUERIES.length;
+    double similarity = median(similarityTimes) / (double) comparisons;
+    double scorer = median(scorerTimes) / (double) comparisons;
+    System.out.println(titles.size() + " titles, " + QUERIES.length + " queries, median of " + ROUNDS + " rounds after " + WARMUP
+        + " warmup rounds");
+    System.out.println(String.format("Similarity:       %8.1f ns per comparison", similarity));
+    System.out.println(String.format("LetterPairScorer: %8.1f ns per comparison (%.1fx)", scorer, similarity / scorer));
+  }
+
+  private static long runSimilarity(List<String> titles) {
+    long start = System.nanoTime();
+    for (String query : QUERIES) {
+      for (String title : titles) {
+        sink += Similarity.compareStrings(title, query);
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static long runScorer(List<int[]> titlePairs) {
+    long start = System.nanoTime();
+    for (String query : QUERIES) {
+      // created once per search
+      int[] queryPairs = LetterPairScorer.letterPairs(query);
+      for (int[] pairs : titlePairs) {
+        sink += LetterPairScorer.compare(pairs, queryPairs);
+      }
+    }
+    return System.nanoTime() - start;
+  }
+
+  private static long median(long[] times) {
+    long[] sorted = Arrays.copyOf(times, times.length);
+    Arrays.sort(sorted);
+    return sorted[sorted.length / 2];
+  }
+
+  private static List<String> readTitles(InputStream is) throws Exception {
+    List<String> titles = new ArrayList<>();
+    try (BufferedReader br = new BufferedReader(new InputStreamReader(is, StandardCharsets.UTF_8))) {
+      for (String line = br.readLine(); line != null; line = br.readLine()) {
+        if (!line.startsWith("#")) {
+          titles.add(line.substring(line.lastIndexOf('|') + 1));
+        }
+      }
+    }
+    return titles;
+  }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import org.junit.Test;
+import org.tinymediamanager.scraper.util.Similarity;
+
+public class LetterPairScorerTest {
+  private static final String[] QUERIES = { "Spider Riders", "Spice and Wolf", "spice & wolf", "Shingeki no Kyojin",
+      "Fullmetal  Alchemist: Brotherhood", "Stra\u00dfe", "STRASSE", "\u3042\u3042 \u3044\u3044", "\uff26\uff55\uff4c\uff4c \uff37\uff49\uff44\uff54\uff48" };
+
+  @Test
+  public void testSameScoreAsSimilarity() {
+    for (String str1 : QUERIES) {
+      for (String str2 : QUERIES) {
+        assertScore(str1, str2);
+      }
+    }
+  }
+
+  @Test
+  public void testSameScoreAsSimilarityOnTitleDump() {
+    try {
+      List<String> titles = new ArrayList<>();
+      Path dump = new AniDBCachedUrl().getCachedFile("http://anidb.net/api/anime-titles.dat.gz");
+      try (BufferedReader br = new BufferedReader(
+          new InputStreamReader(new GZIPInputStream(new FileInputStream(dump.toFile())), StandardCharsets.UTF_8))) {
+        for (String line = br.readLine(); line != null; line = br.readLine()) {
+          if (!line.startsWith("#")) {
+            titles.add(line.substring(line.lastIndexOf('|') + 1));
+          }
+        }
+      }
+
+      // like the title index: the letter pairs of the titles are created once
+      List<int[]> titlePairs = new ArrayList<>(titles.size());
+      for (String title : titles) {
+        titlePairs.add(LetterPairScorer.letterPairs(title));
+      }
+
+      for (String query : new String[] { "Spider Riders", "Spice and Wolf", "Shingeki no Kyojin" }) {
+        int[] queryPairs = LetterPairScorer.letterPairs(query);
+        for (int i = 0; i < titles.size(); i++) {
+          assertEquals(titles.get(i) + " / " + query, Similarity.compareStrings(titles.get(i), query),
+              LetterPairScorer.compare(titlePairs.get(i), queryPairs), 0.0001f);
+        }
+      }
+    }
+    catch (Exception e) {
+      e.printStackTrace();
+      fail();
+    }
+  }
+
+  private void assertScore(String str1, String str2) {
+    float expected = Similarity.compareStrings(str1, str2);
+    float actual = LetterPairScorer.compare(LetterPairScorer.letterPairs(str1), LetterPairScorer.letterPairs(str2));
+    assertEquals(str1 + " / " + str2, expected, actual, 0.0001f);
+  }
+}
@@ -0,0 +1,170 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+import java.util.Set;
+
+import org.apache.commons.lang3.StringUtils;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+import org.jsoup.parser.Parser;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class RelatedAnimePrefetcherTest {
+  private static final String ANIME_URL = "http://localhost/anime?aid=";
+
+  @Rule
+  public TemporaryFolder      folder    = new TemporaryFolder();
+
+  private Path                dir;
+  private FakeCache           cache;
+
+  @Before
+  public void setUp() throws Exception {
+    dir = folder.newFolder("cache").toPath();
+    cache = new FakeCache();
+  }
+
+  @Test
+  public void testGetRelatedIds() throws Exception {
+    String xml;
+    try (InputStream is = getClass().getResourceAsStream("/fixtures/anime-4242.xml"); Scanner scanner = new Scanner(is, "UTF-8")) {
+      xml = scanner.useDelimiter("\\A").next();
+    }
+    assertEquals(Arrays.asList("4243"), RelatedAnimePrefetcher.getRelatedIds(Jsoup.parse(xml, "", Parser.xmlParser())));
+    assertEquals(Collections.<String> emptyList(), RelatedAnimePrefetcher.getRelatedIds(anime("1")));
+  }
+
+  @Test
+  public void testDisabled() throws Exception {
+    RelatedAnimePrefetcher prefetcher = new RelatedAnimePrefetcher(cache, ANIME_URL);
+    prefetcher.prefetchRelated(anime("1", "2", "3"));
+    assertTrue(prefetcher.awaitIdle(5000));
+    assertEquals(0, cache.fetched.size());
+  }
+
+  @Test
+  public void testDepth() throws Exception {
+    // 1 -> 2, 3; 2 -> 4; 4 -> 5
+    cache.related("2", "4");
+    cache.related("4", "5");
+
+    RelatedAnimePrefetcher prefetcher = new RelatedAnimePrefetcher(cache, ANIME_URL);
+    prefetcher.setEnabled(true);
+    prefetcher.setLimits(1, 10);
+    prefetcher.prefetchRelated(anime("1", "2", "3"));
+    assertTrue(prefetcher.awaitIdle(5000));
+    assertEquals(new HashSet<>(Arrays.asList("2", "3")), new HashSet<>(cache.fetched));
+
+    cache.fetched.clear();
+    prefetcher = new RelatedAnimePrefetcher(cache, ANIME_URL);
+    prefetcher.setEnabled(true);
+    prefetcher.setLimits(2, 10);
+    prefetcher.prefetchRelated(anime("1", "2", "3"));
+    assertTrue(prefetcher.awaitIdle(5000));
+    assertEquals(new HashSet<>(Arrays.asList("2", "3", "4")), new HashSet<>(cache.fetched));
+  }
+
+  @Test
+  public void testCount() throws Exception {
+    cache.related("2", "5", "6");
+
+    RelatedAnimePrefetcher prefetcher = new RelatedAnimePrefetcher(cache, ANIME_URL);
+    prefetcher.setEnabled(true);
+    prefetcher.setLimits(3, 3);
+    prefetcher.prefetchRelated(anime("1", "2", "3", "4"));
+    assertTrue(prefetcher.awaitIdle(5000));
+    assertEquals(Arrays.asList("2", "3", "4"), cache.fetched);
+  }
+
+  @Test
+  public void testRetryFailedPrefetch() throws Exception {
+    cache.failing.add("2");
+
+    RelatedAnimePrefetcher prefetcher = new RelatedAnimePrefetcher(cache, ANIME_URL);
+    prefetcher.setEnabled(true);
+    prefetcher.prefetchRelated(anime("1", "2", "3"));
+    assertTrue(prefetcher.awaitIdle(5000));
+    assertEquals(Arrays.asList("2", "3"), cache.fetched);
+
+    // only the failed one is fetched again
+    cache.fetched.clear();
+    prefetcher.prefetchRelated(anime("1", "2", "3"));
+    assertTrue(prefetcher.awaitIdle(5000));
+    assertEquals(Arrays.asList("2"), cache.fetched);
+  }
+
+  private Document anime(String aid, String... relatedAids) {
+    return Jsoup.parse(animeXml(aid, relatedAids), "", Parser.xmlParser());
+  }
+
+  private static String animeXml(String aid, String... relatedAids) {
+    StringBuilder sb = new StringBuilder("<anime id=\"" + aid + "\"><relatedanime>");
+    for (String relatedAid : relatedAids) {
+      sb.append("<anime id=\"").append(relatedAid).append("\" type=\"Sequel\">Sequel</anime>");
+    }
+    return sb.append("</relatedanime></anime>").toString();
+  }
+
+  /****************************************************************************
+   * cache which serves generated anime XML files rather than downloading them
+   ****************************************************************************/
+  private class FakeCache extends AniDBCachedUrl {
+    final List<String>          fetched   = Collections.synchronizedList(new ArrayList<String>());
+    final Set<String>           failing   = Collections.synchronizedSet(new HashSet<String>());
+    final Map<String, String[]> relations = new HashMap<>();
+
+    FakeCache() {
+      super(dir);
+    }
+
+    void related(String aid, String... relatedAids) {
+      relations.put(aid, relatedAids);
+    }
+
+    @Override
+    public Path prefetch(String url) throws Exception {
+      String aid = StringUtils.substringAfterLast(url, "=");
+      fetched.add(aid);
+      if (failing.remove(aid)) {
+        throw new IOException("failed");
+      }
+      String[] relatedAids = relations.containsKey(aid) ? relations.get(aid) : new String[0];
+      Path file = dir.resolve(aid + ".xml");
+      Files.write(file, animeXml(aid, relatedAids).getBytes(StandardCharsets.UTF_8));
+      return file;
+    }
+  }
+}
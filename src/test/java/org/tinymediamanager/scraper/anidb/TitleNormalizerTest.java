@@ -0,0 +1,45 @@
+/*
+ * Copyright 2012 - 2016 Manuel Laggner
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.tinymediamanager.scraper.anidb;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+public class TitleNormalizerTest {
+
+  @Test
+  public void testNormalize() {
+    assertEquals("spice and wolf", TitleNormalizer.normalize("Spice and Wolf"));
+    assertEquals("spice and wolf", TitleNormalizer.normalize(" spice & wolf "));
+    // full width characters
+    assertEquals("spice and wolf", TitleNormalizer.normalize("\uff33\uff30\uff29\uff23\uff25 AND WOLF"));
+    assertEquals("girls last tour 2", TitleNormalizer.normalize("The Girls' Last Tour: Season 2"));
+    assertEquals("the", TitleNormalizer.normalize("The"));
+    assertEquals("", TitleNormalizer.normalize(" "));
+    // nothing but punctuation and symbols
+    assertEquals("?!", TitleNormalizer.normalize(" ?! "));
+    assertEquals("\u2200", TitleNormalizer.normalize("\u2200"));
+  }
+
+  @Test
+  public void testTokenKey() {
+    assertEquals("and spice wolf", TitleNormalizer.tokenKey("wolf and spice"));
+    assertEquals("and spice wolf", TitleNormalizer.tokenKey("spice and wolf"));
+    assertEquals("wolf wolf", TitleNormalizer.tokenKey("wolf wolf"));
+    assertEquals("kira kira x", TitleNormalizer.tokenKey("kira x kira"));
+  }
+}